@@ -1,10 +1,5 @@
 #!/usr/local/bin/bash
 mvn clean compile package 
-java -jar target/disruptor-1.0-SNAPSHOT.jar 192.168.0.253 1
-java -jar target/disruptor-1.0-SNAPSHOT.jar 192.168.0.253 2
-java -jar target/disruptor-1.0-SNAPSHOT.jar 192.168.0.253 3
-java -jar target/disruptor-1.0-SNAPSHOT.jar 192.168.0.253 4
-java -jar target/disruptor-1.0-SNAPSHOT.jar 192.168.0.253 5
-java -jar target/disruptor-1.0-SNAPSHOT.jar 192.168.0.253 6
-java -jar target/disruptor-1.0-SNAPSHOT.jar 192.168.0.253 7
-java -jar target/disruptor-1.0-SNAPSHOT.jar 192.168.0.253 8
+for connections in 1 2 3 4 5 6 7 8; do
+    java -jar target/disruptor-1.0-SNAPSHOT.jar 192.168.0.253 --rate 20000 --connections $connections --log run-$connections.hlog
+done
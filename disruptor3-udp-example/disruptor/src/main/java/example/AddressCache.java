@@ -0,0 +1,263 @@
+package example;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import com.lmax.disruptor.Sequence;
+
+/**
+ * Interns the sender addresses handed back by the channel, so each peer is represented by one
+ * canonical InetSocketAddress for as long as it stays in the cache
+ * <p>
+ * Entries are keyed on the raw address and port: 16 bytes of address as two longs, IPv4 as an
+ * IPv4-mapped IPv6 address, plus the port. Lookups go through an open-addressed index with
+ * linear probing, twice the capacity so probe runs stay short; entries live in parallel arrays
+ * allocated up front. Each entry also keeps the peer's packet count and when it was last seen.
+ * When full, the entry to replace is picked by CLOCK: a hand sweeps the entries, giving any
+ * used since its last pass a second chance.
+ * <p>
+ * The channel already returns the same instance while the peer doesn't change, so that case is
+ * answered without looking at the address bytes at all.
+ * <p>
+ * Each peer also gets a long key, for later stages that want a primitive to index by; see key()
+ * <p>
+ * intern() must be called from one thread; the per-peer stats can be read from any other,
+ * without locking, and may be slightly stale
+ */
+class AddressCache {
+
+    private final int capacity;
+    private final int mask;
+    // entry + 1 for each index slot, 0 when empty
+    private final int[] index;
+    private final int[] hashes;
+    private final long[] high;
+    private final long[] low;
+    private final int[] ports;
+    private final long[] keys;
+    private final InetSocketAddress[] addresses;
+    private final long[] packets;
+    private final long[] lastSeen;
+    private final boolean[] referenced;
+    private int size;
+    private int hand;
+    private SocketAddress lastReceived;
+    private int lastEntry = -1;
+    private long lastKey;
+
+    // padded, single writer
+    final Sequence hits = new Sequence(0);
+    final Sequence misses = new Sequence(0);
+    final Sequence evictions = new Sequence(0);
+
+    /**
+     * @param capacity number of peers held, a power of two
+     */
+    AddressCache(int capacity) {
+        if (capacity < 1 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("address cache capacity must be a power of two: " + capacity);
+        }
+        this.capacity = capacity;
+        this.mask = 2 * capacity - 1;
+        this.index = new int[2 * capacity];
+        this.hashes = new int[capacity];
+        this.high = new long[capacity];
+        this.low = new long[capacity];
+        this.ports = new int[capacity];
+        this.keys = new long[capacity];
+        this.addresses = new InetSocketAddress[capacity];
+        this.packets = new long[capacity];
+        this.lastSeen = new long[capacity];
+        this.referenced = new boolean[capacity];
+    }
+
+    /**
+     * Counts a packet from address, seen at now
+     *
+     * @return the canonical instance equal to address; address itself when it is new, or isn't
+     *         a resolved InetSocketAddress
+     */
+    SocketAddress intern(SocketAddress address, long now) {
+        if (address == lastReceived) {
+            hits.set(hits.get() + 1);
+            touch(lastEntry, now);
+            return addresses[lastEntry];
+        }
+        lastKey = 0;
+        if (!(address instanceof InetSocketAddress)) return address;
+        final InetSocketAddress inet = (InetSocketAddress) address;
+        final InetAddress ip = inet.getAddress();
+        if (ip == null) return address;
+
+        final byte[] raw = ip.getAddress();
+        final long hi = high(raw);
+        final long lo = low(raw);
+        final int port = inet.getPort();
+        final int hash = hash(hi, lo, port);
+
+        int entry = find(hash, hi, lo, port);
+        if (entry >= 0) {
+            hits.set(hits.get() + 1);
+        } else {
+            misses.set(misses.get() + 1);
+            entry = size < capacity ? size : evict();
+            hashes[entry] = hash;
+            high[entry] = hi;
+            low[entry] = lo;
+            ports[entry] = port;
+            keys[entry] = key(hi, lo, port);
+            addresses[entry] = inet;
+            packets[entry] = 0;
+            insert(hash, entry);
+            // counted once filled in, for readers on other threads
+            if (entry == size) size++;
+        }
+        touch(entry, now);
+        lastReceived = address;
+        lastEntry = entry;
+        lastKey = keys[entry];
+        return addresses[entry];
+    }
+
+    /**
+     * @return key(address) for the address last passed to intern(), without working it out again
+     */
+    long key() {
+        return lastKey;
+    }
+
+    /**
+     * A peer as a long: an IPv4 address and port packed exactly into the low 48 bits, anything
+     * else hashed into a negative value. Distinct IPv6 peers may, very rarely, share a key.
+     * Allocates a copy of the address bytes; intern() then key() does not, for a repeat peer
+     *
+     * @return the key, or 0 for an address that isn't a resolved InetSocketAddress
+     */
+    static long key(SocketAddress address) {
+        if (!(address instanceof InetSocketAddress)) return 0;
+        final InetSocketAddress inet = (InetSocketAddress) address;
+        if (inet.getAddress() == null) return 0;
+        final byte[] raw = inet.getAddress().getAddress();
+        return key(high(raw), low(raw), inet.getPort());
+    }
+
+    private static long key(long hi, long lo, int port) {
+        if (hi == 0 && lo >>> 32 == 0xffff) {
+            return (lo & 0xffffffffL) << 16 | port;
+        }
+        long h = (hi * 0x9E3779B97F4A7C15L ^ lo) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ h >>> 31 ^ port) * 0x94D049BB133111EBL;
+        return (h ^ h >>> 29) | Long.MIN_VALUE;
+    }
+
+    /** IPv4 is held as the IPv4-mapped IPv6 address, ::ffff:a.b.c.d */
+    private static long high(byte[] raw) {
+        return raw.length == 4 ? 0 : getLong(raw, 0);
+    }
+
+    private static long low(byte[] raw) {
+        return raw.length == 4 ? 0xffff00000000L | (getInt(raw, 0) & 0xffffffffL) : getLong(raw, 8);
+    }
+
+    private void touch(int entry, long now) {
+        packets[entry]++;
+        lastSeen[entry] = now;
+        referenced[entry] = true;
+    }
+
+    private int find(int hash, long hi, long lo, int port) {
+        for (int i = hash & mask;; i = (i + 1) & mask) {
+            final int entry = index[i] - 1;
+            if (entry < 0) return -1;
+            if (hashes[entry] == hash && low[entry] == lo && high[entry] == hi && ports[entry] == port) {
+                return entry;
+            }
+        }
+    }
+
+    private void insert(int hash, int entry) {
+        int i = hash & mask;
+        while (index[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        index[i] = entry + 1;
+    }
+
+    /**
+     * Sweeps the hand until it finds an entry not used since the last pass, and unlinks it
+     *
+     * @return the freed entry
+     */
+    private int evict() {
+        while (referenced[hand]) {
+            referenced[hand] = false;
+            hand = (hand + 1) & (capacity - 1);
+        }
+        final int entry = hand;
+        hand = (hand + 1) & (capacity - 1);
+        if (entry == lastEntry) {
+            lastReceived = null;
+            lastEntry = -1;
+        }
+        int i = hashes[entry] & mask;
+        while (index[i] != entry + 1) {
+            i = (i + 1) & mask;
+        }
+        remove(i);
+        evictions.set(evictions.get() + 1);
+        return entry;
+    }
+
+    /**
+     * Empties index slot i, shifting back any later entries in the same probe run that could
+     * no longer be found across the gap
+     */
+    private void remove(int i) {
+        for (int j = (i + 1) & mask; index[j] != 0; j = (j + 1) & mask) {
+            final int home = hashes[index[j] - 1] & mask;
+            // move it if its home isn't between the gap and where it sits now
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                index[i] = index[j];
+                i = j;
+            }
+        }
+        index[i] = 0;
+    }
+
+    private static int hash(long hi, long lo, int port) {
+        long h = hi * 0x9E3779B97F4A7C15L ^ lo;
+        h = (h ^ port) * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static int getInt(byte[] b, int offset) {
+        return (b[offset] & 0xff) << 24 | (b[offset + 1] & 0xff) << 16
+            | (b[offset + 2] & 0xff) << 8 | (b[offset + 3] & 0xff);
+    }
+
+    private static long getLong(byte[] b, int offset) {
+        return (getInt(b, offset) & 0xffffffffL) << 32 | (getInt(b, offset + 4) & 0xffffffffL);
+    }
+
+    // per-peer stats; entries 0 to size() - 1 are in use
+
+    int size() {
+        return size;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    InetSocketAddress address(int entry) {
+        return addresses[entry];
+    }
+
+    long packets(int entry) {
+        return packets[entry];
+    }
+
+    long lastSeenNanos(int entry) {
+        return lastSeen[entry];
+    }
+}
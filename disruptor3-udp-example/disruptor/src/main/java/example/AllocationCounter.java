@@ -0,0 +1,45 @@
+package example;
+
+import java.lang.management.ManagementFactory;
+import com.lmax.disruptor.Sequence;
+
+/**
+ * Counts the bytes allocated by a single thread, using the HotSpot per-thread allocation counter
+ * <p>
+ * The owning thread calls sample() every so often (eg: at the end of a batch); any other thread
+ * can read the running total. Used to show that a stage produces no garbage per packet
+ */
+class AllocationCounter {
+
+    private static final com.sun.management.ThreadMXBean THREADS = threadBean();
+
+    // padded, single writer
+    private final Sequence allocated = new Sequence(0);
+    private long baseline = -1;
+
+    /**
+     * Must be called from the thread being measured
+     */
+    public void sample() {
+        if (THREADS == null) return;
+        final long now = THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+        if (baseline < 0) baseline = now;
+        allocated.set(now - baseline);
+    }
+
+    /**
+     * @return bytes allocated by the owning thread between its first and latest sample
+     */
+    public long get() {
+        return allocated.get();
+    }
+
+    private static com.sun.management.ThreadMXBean threadBean() {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) return null;
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        if (!threads.isThreadAllocatedMemorySupported()) return null;
+        threads.setThreadAllocatedMemoryEnabled(true);
+        return threads;
+    }
+}
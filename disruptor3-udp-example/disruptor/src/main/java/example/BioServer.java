@@ -3,7 +3,7 @@ import java.io.*;
 import java.net.*;
 import java.util.Arrays;
 
-public class BioServer {
+public class BioServer implements UdpServer {
 
     Thread t;
     final DatagramSocket server;
@@ -0,0 +1,213 @@
+package example;
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ThreadPoolServer with the bounds put back in
+ * <p>
+ * A fixed set of workers, each with its own reply socket and reply buffer, takes packets off a
+ * bounded queue. Receive buffers come from a pool sized so the receiver never has to allocate,
+ * and the OverloadPolicy decides what happens when the queue is full. Dropped packets are
+ * counted, so a burst shows up as a number rather than as a thread explosion
+ */
+public class BoundedPoolServer implements UdpServer {
+
+    private static final int BYTE_ARRAY_SIZE = 1024;
+
+    private Thread t;
+    private Thread[] workers;
+
+    private final DatagramSocket server;
+    private final int workerCount;
+    private final OverloadPolicy policy;
+    private final BlockingQueue<PooledPacket> queue;
+    private final BlockingQueue<PooledPacket> pool;
+    private final AtomicLong dropped = new AtomicLong();
+    // queued or in a worker's hands, and not yet sent
+    private final AtomicInteger unanswered = new AtomicInteger();
+    private volatile int abandoned;
+
+    public static void main(String[] args) throws Exception {
+	BoundedPoolServer s = new BoundedPoolServer(9999,
+                                                    Integer.getInteger("bounded.workers", Runtime.getRuntime().availableProcessors()),
+                                                    Integer.getInteger("bounded.queue", 1024),
+                                                    OverloadPolicy.fromName(System.getProperty("bounded.policy", "drop-newest")));
+	s.start();
+	System.console().readLine("BoundedPoolServer running on port 9999. Press enter to exit.");
+	s.stop();
+	System.out.println("dropped " + s.dropped() + " packets, " + s.abandoned() + " left unanswered at stop");
+	System.exit(0);
+    }
+
+    public BoundedPoolServer(int port) throws SocketException {
+        this(port, Runtime.getRuntime().availableProcessors(), 1024, OverloadPolicy.DROP_NEWEST);
+    }
+
+    public BoundedPoolServer(int port, int workerCount, int queueSize, OverloadPolicy policy) throws SocketException {
+        if (workerCount < 1 || queueSize < 1) {
+            throw new IllegalArgumentException("need at least one worker and one queue slot");
+        }
+        this.server = new DatagramSocket(port);
+        this.workerCount = workerCount;
+        this.policy = policy;
+        this.queue = new ArrayBlockingQueue<PooledPacket>(queueSize);
+        // enough for a full queue, one in every worker's hands and one being received into
+        final int poolSize = queueSize + workerCount + 1;
+        this.pool = new ArrayBlockingQueue<PooledPacket>(poolSize);
+        for (int i = 0; i < poolSize; i++) {
+            pool.add(new PooledPacket());
+        }
+    }
+
+    /**
+     * @return packets thrown away by the overload policy so far
+     */
+    public long dropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return packets queued or being answered when stop() gave up waiting for the workers
+     */
+    public int abandoned() {
+        return abandoned;
+    }
+
+    public void start() throws Exception {
+        workers = new Thread[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Thread(new PacketResponder(), "responder-" + i);
+            workers[i].start();
+        }
+	t = new Thread(new Runnable() {
+		public void run() {
+		    try {
+			while(true) {
+                            final PooledPacket p = pool.take();
+                            p.packet.setData(p.data, 0, p.data.length);
+			    server.receive(p.packet);
+                            enqueue(p);
+			}
+		    } catch (SocketException e) {
+			if (!e.toString().equals("java.net.SocketException: Socket closed")) {
+			    System.out.println(e);
+			    e.printStackTrace();
+			}
+		    } catch (InterruptedException e) {
+                        // stopping
+		    } catch (Exception e) {
+			System.out.println(e);
+			e.printStackTrace();
+		    }
+		}}, "receiver");
+	t.start();
+    }
+
+    /**
+     * Counts the packet as unanswered before a worker can see it, so stop() never finds the
+     * queue empty and nothing unanswered while a worker is still holding one
+     */
+    private void enqueue(PooledPacket p) throws InterruptedException {
+        unanswered.incrementAndGet();
+        switch (policy) {
+        case BLOCK:
+            try {
+                queue.put(p);
+            } catch (InterruptedException e) {
+                unanswered.decrementAndGet();
+                throw e;
+            }
+            return;
+        case DROP_OLDEST:
+            while (!queue.offer(p)) {
+                final PooledPacket oldest = queue.poll();
+                if (oldest != null) {
+                    unanswered.decrementAndGet();
+                    dropped.incrementAndGet();
+                    pool.add(oldest);
+                }
+            }
+            return;
+        default:
+            if (!queue.offer(p)) {
+                unanswered.decrementAndGet();
+                dropped.incrementAndGet();
+                pool.add(p);
+            }
+        }
+    }
+
+    public void stop() throws Exception {
+	if (t == null)
+	    return;
+	t.interrupt();
+	server.close();
+	t.join();
+        // nothing more is coming in; give the workers a while to answer what is queued and
+        // what they have already taken
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (unanswered.get() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        abandoned = unanswered.get();
+        for (Thread w : workers) w.interrupt();
+        for (Thread w : workers) w.join();
+        t = null;
+    }
+
+    /**
+     * A receive buffer and the packet and ByteBuffer views over it, allocated once
+     */
+    private static class PooledPacket {
+        final byte[] data = new byte[BYTE_ARRAY_SIZE];
+        final DatagramPacket packet = new DatagramPacket(data, data.length);
+        final ByteBuffer buffer = ByteBuffer.wrap(data);
+    }
+
+    /**
+     * Worker loop; owns its reply socket and reply buffer for its whole life
+     */
+    private class PacketResponder implements Runnable {
+        private final ByteTransform transform = new UpperCaseTransform();
+        private final byte[] sendData = new byte[BYTE_ARRAY_SIZE];
+        private final ByteBuffer sendBuffer = ByteBuffer.wrap(sendData);
+        private final DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length);
+
+	public void run() {
+            DatagramSocket socket = null;
+	    try {
+                socket = new DatagramSocket();
+                while (true) {
+                    final PooledPacket p = queue.take();
+                    try {
+                        try {
+                            p.buffer.clear();
+                            p.buffer.limit(p.packet.getLength());
+                            sendBuffer.clear();
+                            transform.transform(p.buffer, sendBuffer);
+                            sendPacket.setData(sendData, 0, sendBuffer.position());
+                            sendPacket.setAddress(p.packet.getAddress());
+                            sendPacket.setPort(p.packet.getPort());
+                        } finally {
+                            pool.add(p);
+                        }
+                        socket.send(sendPacket);
+                    } finally {
+                        unanswered.decrementAndGet();
+                    }
+                }
+	    } catch (InterruptedException e) {
+                // stopping
+	    } catch (IOException e) {
+		System.out.println(e);
+		e.printStackTrace();
+	    } finally {
+                if (socket != null) socket.close();
+            }
+	}
+    }
+}
@@ -0,0 +1,17 @@
+package example;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A byte level transform, run by the business logic stage on every packet
+ * <p>
+ * Implementations sit on the hot path so they must not allocate
+ */
+public interface ByteTransform {
+
+    /**
+     * Reads src from 0 up to its limit without moving its position, and writes the result into
+     * dst from dst's position. Anything that would go past dst's limit is dropped
+     */
+    void transform(ByteBuffer src, ByteBuffer dst);
+}
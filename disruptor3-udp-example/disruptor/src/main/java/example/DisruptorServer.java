@@ -1,166 +1,1309 @@
 package example;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.net.*;
 import java.nio.*;
 import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.*;
+import javax.management.*;
+import org.HdrHistogram.SingleWriterRecorder;
 import com.lmax.disruptor.*;
+import com.lmax.disruptor.collections.Histogram;
 import com.lmax.disruptor.dsl.*;
 import com.lmax.disruptor.dsl.Disruptor;
 import com.lmax.disruptor.dsl.ProducerType;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
 
-public class DisruptorServer {
+public class DisruptorServer implements UdpServer {
 
     public static void main(String[] args) throws Exception {
-        DisruptorServer d = new DisruptorServer(9999);
+        final DisruptorServer d = new DisruptorServer(9999,
+                                                      Boolean.getBoolean("disruptor.direct"),
+                                                      Integer.getInteger("disruptor.receivers", 1));
+        d.setTransform(newTransform(System.getProperty("disruptor.transform", UpperCaseTransform.class.getName())));
+        d.setCoalescing(Integer.getInteger("disruptor.coalesceBytes", 0));
+        d.setWaitProfile(WaitProfile.fromName(args.length > 0 ? args[0] : System.getProperty("disruptor.profile", "efficiency")));
+        d.setCpus(ThreadAffinity.parseCpus(System.getProperty("disruptor.cpus")));
+        d.setBusinessLogicWorkers(Integer.getInteger("disruptor.workers", 1));
+        final String journal = System.getProperty("disruptor.journal");
+        d.setJournal(journal == null ? null : new File(journal),
+                     Integer.getInteger("disruptor.journalSegmentMB", 64) * 1024 * 1024,
+                     FsyncPolicy.fromName(System.getProperty("disruptor.fsync", "none")),
+                     Long.getLong("disruptor.fsyncMillis", 100), TimeUnit.MILLISECONDS);
+        final String replay = System.getProperty("disruptor.replay");
+        d.setReplay(replay == null ? null : new File(replay));
+        d.setInstrumented(Boolean.getBoolean("disruptor.instrument"));
+        d.setRingSize(Integer.getInteger("disruptor.ringSize", 1024));
+        d.setShedding(Boolean.getBoolean("disruptor.shed"));
+        d.setReceiveBufferSize(Integer.getInteger("disruptor.rcvbuf", 0));
+        d.setReassembly(Integer.getInteger("disruptor.reassemblySlots", 0),
+                        Long.getLong("disruptor.reassemblyTimeoutMillis", 1000), TimeUnit.MILLISECONDS);
+        d.setAddressCache(Integer.getInteger("disruptor.peers", 4096));
+        d.setRateLimit(Long.getLong("disruptor.rateLimit", 0), Integer.getInteger("disruptor.rateBurst", 100),
+                       Integer.getInteger("disruptor.rateClients", 4096));
+        d.setDrainTimeout(Long.getLong("disruptor.drainMillis", 5000), TimeUnit.MILLISECONDS);
         d.start();
+        startThroughputReporter(d, Integer.getInteger("disruptor.reportSeconds", 5));
         System.console().readLine("DisruptorServer running on port 9999. Press enter to exit.");
-	System.exit(0);
         d.stop();
+        System.exit(0);
+    }
+
+    // generic array creation, kept to these two places
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    static <E> Disruptor<E>[] newDisruptors(int count) {
+        return new Disruptor[count];
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static <E> EventHandler<E>[] newHandlers(int count) {
+        return new EventHandler[count];
+    }
+
+    /**
+     * handleEventsWith() and then() are generic varargs; handing them an array built here
+     * keeps each call from creating one unchecked
+     */
+    static <E> EventHandler<E>[] handlers(EventHandler<E> handler) {
+        final EventHandler<E>[] handlers = newHandlers(1);
+        handlers[0] = handler;
+        return handlers;
+    }
+
+    private static ByteTransform newTransform(String className) throws Exception {
+        return (ByteTransform) Class.forName(className).getDeclaredConstructor().newInstance();
+    }
+
+    /**
+     * Prints packets/sec per receiver, so scaling from 1 to N receivers can be read off the console
+     */
+    private static void startThroughputReporter(final DisruptorServer d, final int seconds) {
+        if (seconds <= 0) return;
+        final Thread reporter = new Thread(new Runnable() {
+                public void run() {
+                    long[] last = d.receivedCounts();
+                    long lastAllocated = d.allocatedBytes();
+                    try {
+                        while(true) {
+                            Thread.sleep(seconds * 1000L);
+                            final long[] now = d.receivedCounts();
+                            final StringBuilder sb = new StringBuilder("pkts/s:");
+                            long total = 0;
+                            for (int i = 0; i < now.length; i++) {
+                                final long delta = now[i] - last[i];
+                                total += delta;
+                                sb.append(" r").append(i).append('=').append(delta / seconds);
+                            }
+                            sb.append(" total=").append(total / seconds);
+                            // receive, business logic and send threads; should settle to 0 once
+                            // warm. BlockingWaitStrategy still allocates a lock node each time a
+                            // handler parks, the packet path itself does not
+                            final long allocated = d.allocatedBytes();
+                            sb.append(" alloc B/pkt=").append(total == 0 ? 0 : (allocated - lastAllocated) / total);
+                            final Histogram events = d.eventsPerSendBatch();
+                            final Histogram sends = d.datagramsPerSendBatch();
+                            if (events.getCount() > 0) {
+                                sb.append(" send batch mean/99%/max events=").append(events.getMean())
+                                    .append('/').append(events.getTwoNinesUpperBound())
+                                    .append('/').append(events.getMax())
+                                    .append(" datagrams=").append(sends.getMean())
+                                    .append('/').append(sends.getTwoNinesUpperBound())
+                                    .append('/').append(sends.getMax());
+                            }
+                            if (d.reassemblySlots > 0) {
+                                sb.append(" messages=").append(d.reassembledMessages())
+                                    .append(" evicted=").append(d.evictedMessages())
+                                    .append(" rejected=").append(d.rejectedFragments());
+                            }
+                            if (d.addressCacheCapacity > 0) {
+                                sb.append(" peers=").append(d.peers());
+                            }
+                            if (d.rateLimit > 0) {
+                                sb.append(" limited=").append(d.limitedPackets());
+                            }
+                            if (d.shedding) {
+                                sb.append(" shed=").append(d.shedPackets());
+                            }
+                            sb.append(" socket drops=").append(d.socketDrops());
+                            sb.append(" cpu=").append(Math.round(processCpuLoad() * 100)).append('%');
+                            System.out.println(sb);
+                            if (d.instrumented) {
+                                System.out.print(d.instrumentationReport());
+                            }
+                            last = now;
+                            lastAllocated = allocated;
+                        }
+                    } catch (InterruptedException e) {
+                        // exit quietly
+                    }
+                }
+            }, "throughput-reporter");
+        reporter.setDaemon(true);
+        reporter.start();
+    }
+
+    /**
+     * @return recent cpu use of the whole process, 0 to 1 across all cores; negative if unknown
+     */
+    private static double processCpuLoad() {
+        final java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuLoad();
+        }
+        return -1;
     }
 
-    private static final int RING_SIZE = 1*1024;
     private static final int BYTE_ARRAY_SIZE = 1*1024;
 
     ExecutorService executor;
-    DatagramChannel channel;
+    DatagramChannel[] channels;
+    ReceiveThread[] receivers;
+    BusinessLogicHandler[] businessLogic;
+    DatagramSendHandler[] senders;
+    ByteTransform transform = new UpperCaseTransform();
+    int coalesceBytes = 0;
+    WaitProfile profile = WaitProfile.EFFICIENCY;
+    int[] cpus = new int[0];
+    int workers = 1;
+    File journalDirectory = null;
+    int journalSegmentBytes = 64 * 1024 * 1024;
+    FsyncPolicy fsync = FsyncPolicy.NONE;
+    long fsyncIntervalNanos = 0;
+    File replayDirectory = null;
+    boolean instrumented = false;
+    int ringSize = 1024;
+    boolean shedding = false;
+    int receiveBufferSize = 0;
+    int reassemblySlots = 0;
+    long reassemblyTimeoutNanos = 0;
+    int addressCacheCapacity = 4096;
+    long rateLimit = 0;
+    long drainTimeoutNanos = TimeUnit.SECONDS.toNanos(5);
+    int rateBurst = 0;
+    int rateClients = 0;
+    Disruptor<DatagramEvent>[] inputs;
+    Disruptor<DatagramEvent>[] outputs;
+    JournalHandler[] journals;
+    ReassemblyHandler[] reassemblers;
+    RateLimitHandler[] limiters;
+    ObjectName[] monitors;
+
+    volatile long flushedEvents;
+    volatile long abandonedEvents;
 
     final int port;
-    Thread t;
+    final boolean direct;
+    final int receiverCount;
+    Thread[] t;
 
     public DisruptorServer(int port) {
+        this(port, false, 1);
+    }
+
+    /**
+     * @param direct if true, ring events own direct ByteBuffers so the kernel writes straight
+     *               into the claimed slot and the reply is sent straight out of the output slot
+     * @param receiverCount number of receive threads; each one gets its own SO_REUSEPORT channel
+     *                      bound to the port and its own in/out rings, so the shards share nothing
+     */
+    public DisruptorServer(int port, boolean direct, int receiverCount) {
+        if (receiverCount < 1) {
+            throw new IllegalArgumentException("need at least one receiver: " + receiverCount);
+        }
         this.port = port;
+        this.direct = direct;
+        this.receiverCount = receiverCount;
+    }
+
+    /**
+     * Sets the transform the business logic stage applies to each packet; call before start()
+     */
+    public void setTransform(ByteTransform transform) {
+        this.transform = transform;
+    }
+
+    /**
+     * Turns on coalescing of consecutive replies to the same address into one datagram of at
+     * most maxBytes, each reply behind a two byte length; maxBytes of 0 turns it off. Nothing is
+     * held past the end of the batch it arrived in. Call before start()
+     */
+    public void setCoalescing(int maxBytes) {
+        if (maxBytes != 0 && (maxBytes < BYTE_ARRAY_SIZE + 2 || maxBytes > 65507)) {
+            throw new IllegalArgumentException("coalescing size must be 0, or between " + (BYTE_ARRAY_SIZE + 2)
+                                               + " and 65507: " + maxBytes);
+        }
+        this.coalesceBytes = maxBytes;
+    }
+
+    /**
+     * Picks the wait strategy used on every ring; call before start()
+     */
+    public void setWaitProfile(WaitProfile profile) {
+        this.profile = profile;
+    }
+
+    /**
+     * Cpus to pin threads to, handed out in order receiver, business logic workers, send,
+     * journal, reassembly and rate limiter (those that are on) for shard 0, then shard 1 and so
+     * on. Threads without a cpu in the list are left
+     * alone. Call before start()
+     */
+    public void setCpus(int[] cpus) {
+        this.cpus = cpus.clone();
+    }
+
+    /**
+     * Number of business logic handlers per shard. Each one takes the packets whose source
+     * address hashes to it, so replies to any one peer keep their order while different peers
+     * are served in parallel. Call before start()
+     */
+    public void setBusinessLogicWorkers(int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("need at least one business logic worker: " + workers);
+        }
+        this.workers = workers;
+    }
+
+    /**
+     * Adds a journaling handler to each input ring, as a side branch next to the business
+     * logic. It sees every packet but nothing waits on it, so it costs the reply path nothing
+     * unless it falls a whole ring behind. Each shard writes its own rolling segments, named
+     * journal-N, into the directory; a null directory turns journaling off. Call before start()
+     */
+    public void setJournal(File directory, int segmentBytes, FsyncPolicy fsync, long fsyncInterval, TimeUnit unit) {
+        if (directory != null && segmentBytes < Journal.HEADER_SIZE + Journal.RECORD_HEADER_SIZE + 16 + BYTE_ARRAY_SIZE) {
+            throw new IllegalArgumentException("journal segment too small for a full datagram: " + segmentBytes);
+        }
+        this.journalDirectory = directory;
+        this.journalSegmentBytes = segmentBytes;
+        this.fsync = fsync;
+        this.fsyncIntervalNanos = unit.toNanos(fsyncInterval);
+    }
+
+    /**
+     * Replays the journal in directory into the first shard during start(), before any packet
+     * is received; the business logic runs as normal, so replies go to the original senders.
+     * Replayed packets are not journaled again. Call before start()
+     */
+    public void setReplay(File directory) {
+        this.replayDirectory = directory;
+    }
+
+    /**
+     * Turns on per-stage latency recording and registers an MBean per shard showing ring
+     * capacity and consumer lag. Every event is stamped with nanoTime as it passes each stage and
+     * recorded into HdrHistogram recorders, which allocate nothing once started. Call before
+     * start()
+     */
+    public void setInstrumented(boolean instrumented) {
+        this.instrumented = instrumented;
+    }
+
+    /**
+     * Number of slots in each ring, a power of two; bigger rides out longer stalls at the cost
+     * of memory and of the latency of whatever is queued. Call before start()
+     */
+    public void setRingSize(int ringSize) {
+        if (ringSize < 1 || Integer.bitCount(ringSize) != 1) {
+            throw new IllegalArgumentException("ring size must be a power of two: " + ringSize);
+        }
+        this.ringSize = ringSize;
+    }
+
+    /**
+     * When on, a receiver that finds its ring full reads the next datagram into a scratch
+     * buffer and drops it, counting it as shed, instead of waiting for a slot. Drops then show
+     * up in shedPackets() rather than as a silent overflow of the socket buffer. Call before
+     * start()
+     */
+    public void setShedding(boolean shedding) {
+        this.shedding = shedding;
+    }
+
+    /**
+     * Asks for an SO_RCVBUF of this many bytes on each receive channel, or leaves the system
+     * default if 0. The kernel may cap it (net.core.rmem_max on linux); what was granted is
+     * printed at start. Call before start()
+     */
+    public void setReceiveBufferSize(int bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("receive buffer size can't be negative: " + bytes);
+        }
+        this.receiveBufferSize = bytes;
+    }
+
+    /**
+     * Switches to framed messages (see Framing) of up to 64 KB. A reassembly stage in front of
+     * the business logic collects fragments into a slab of the given number of slots, allocated
+     * up front; the business logic sees each message once complete and its reply goes back out
+     * in fragments. Partial messages are evicted after the timeout. 0 slots turns it off.
+     * Call before start()
+     */
+    public void setReassembly(int slots, long timeout, TimeUnit unit) {
+        if (slots != 0 && Integer.bitCount(slots) != 1) {
+            throw new IllegalArgumentException("reassembly slots must be 0 or a power of two: " + slots);
+        }
+        this.reassemblySlots = slots;
+        this.reassemblyTimeoutNanos = unit.toNanos(timeout);
+    }
+
+    /**
+     * Number of peers each receiver remembers, a power of two, or 0 for none. Received sender
+     * addresses are interned in a per-shard AddressCache, so every packet from a peer carries
+     * the same address instance down the rings and back out to send(), and per-peer packet
+     * counts and last seen times are kept. Call before start()
+     */
+    public void setAddressCache(int capacity) {
+        if (capacity != 0 && Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("address cache capacity must be 0 or a power of two: " + capacity);
+        }
+        this.addressCacheCapacity = capacity;
+    }
+
+    /**
+     * Puts a rate limiting stage at the front of each input ring, ahead of reassembly and the
+     * business logic. Every client, by source address, gets a token bucket of burst packets
+     * refilled at perSecond; packets over the limit are counted against the client and skipped
+     * by the later stages, so one noisy peer can't take over the business logic thread. The
+     * journal still sees them. clients is the size of each shard's bucket table, a power of
+     * two. A rate of 0 turns it off. Clients are told apart by their address cache key, so
+     * the address cache must be on. Call before start()
+     */
+    public void setRateLimit(long perSecond, int burst, int clients) {
+        if (perSecond < 0) {
+            throw new IllegalArgumentException("rate limit can't be negative: " + perSecond);
+        }
+        if (perSecond > 0 && (burst < 1 || clients < 2 || Integer.bitCount(clients) != 1)) {
+            throw new IllegalArgumentException("need a positive burst and a power of two clients: " + burst + ", " + clients);
+        }
+        this.rateLimit = perSecond;
+        this.rateBurst = burst;
+        this.rateClients = clients;
+    }
+
+    /**
+     * How long stop() waits for the rings to empty once the receivers have stopped; whatever is
+     * still queued after that is abandoned. Call before stop()
+     */
+    public void setDrainTimeout(long timeout, TimeUnit unit) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("drain timeout can't be negative: " + timeout);
+        }
+        this.drainTimeoutNanos = unit.toNanos(timeout);
+    }
+
+    /**
+     * @return handler threads per shard: business logic workers, send, and the optional journal,
+     *         reassembly and rate limiting stages
+     */
+    private int handlersPerShard() {
+        return workers + 1 + (journalDirectory != null ? 1 : 0) + (reassemblySlots > 0 ? 1 : 0)
+            + (rateLimit > 0 ? 1 : 0);
     }
 
     public void start() throws Exception {
+        if (rateLimit > 0 && addressCacheCapacity == 0) {
+            // keying an uncached address means copying its bytes out, for every packet
+            throw new IllegalStateException("rate limiting needs the address cache, see setAddressCache");
+        }
+        // receivers block in the kernel, so only the handlers spin
+        final int handlers = handlersPerShard() * receiverCount;
+        if (profile.spins() && handlers > Runtime.getRuntime().availableProcessors()) {
+            System.out.println("warning: " + profile + " spins " + handlers
+                               + " handler threads on " + Runtime.getRuntime().availableProcessors() + " cpus");
+        }
+
+        // the disruptor needs one thread for each handler
+        executor = Executors.newFixedThreadPool(handlers);
 
-        executor = Executors.newFixedThreadPool(3);
+        final EventFactory<DatagramEvent> factory =
+            direct ? DatagramEvent.DIRECT_EVENT_FACTORY : DatagramEvent.EVENT_FACTORY;
 
-        // start the transmit path
-        Disruptor disruptorOut = new Disruptor<DatagramEvent>(
-            DatagramEvent.EVENT_FACTORY, RING_SIZE, executor, ProducerType.SINGLE, new BlockingWaitStrategy());
-        disruptorOut.handleEventsWith(new DatagramSendHandler());
-        disruptorOut.start();
+        channels = new DatagramChannel[receiverCount];
+        receivers = new ReceiveThread[receiverCount];
+        businessLogic = new BusinessLogicHandler[receiverCount * workers];
+        senders = new DatagramSendHandler[receiverCount];
+        journals = new JournalHandler[receiverCount];
+        reassemblers = new ReassemblyHandler[receiverCount];
+        limiters = new RateLimitHandler[receiverCount];
+        inputs = newDisruptors(receiverCount);
+        outputs = newDisruptors(receiverCount);
+        monitors = new ObjectName[instrumented ? receiverCount : 0];
+        t = new Thread[receiverCount];
 
-        // now start business logic step
-        Disruptor disruptorIn = new Disruptor<DatagramEvent>(
-            DatagramEvent.EVENT_FACTORY, RING_SIZE, executor, ProducerType.SINGLE, new BlockingWaitStrategy());
-        // disruptorIn.handleEventsWith(new PrintToConsoleHandler(), new BusinessLogicHandler(disruptorOut));
-	disruptorIn.handleEventsWith(new BusinessLogicHandler(disruptorOut));
-        disruptorIn.start();
+        for (int i = 0; i < receiverCount; i++) {
+            // start the transmit path; each business logic worker publishes into it
+            final Disruptor<DatagramEvent> disruptorOut = new Disruptor<DatagramEvent>(
+                factory, ringSize, executor, workers > 1 ? ProducerType.MULTI : ProducerType.SINGLE,
+                profile.newWaitStrategy());
+            senders[i] = new DatagramSendHandler(i);
+            disruptorOut.handleEventsWith(handlers(senders[i]));
+            disruptorOut.start();
+
+            // now start business logic step
+            final Disruptor<DatagramEvent> disruptorIn = new Disruptor<DatagramEvent>(
+                factory, ringSize, executor, ProducerType.SINGLE, profile.newWaitStrategy());
+            final EventHandler<DatagramEvent>[] logic = newHandlers(workers);
+            for (int k = 0; k < workers; k++) {
+                businessLogic[i * workers + k] = new BusinessLogicHandler(i, k, disruptorOut, transform);
+                logic[k] = businessLogic[i * workers + k];
+            }
+            if (journalDirectory != null) {
+                // a side branch off the same ring, not a stage in front of the business logic
+                journals[i] = new JournalHandler(i);
+                disruptorIn.handleEventsWith(handlers(journals[i]));
+            }
+            // the optional stages run in order in front of the business logic
+            EventHandlerGroup<DatagramEvent> front = null;
+            if (rateLimit > 0) {
+                limiters[i] = new RateLimitHandler(i);
+                front = disruptorIn.handleEventsWith(handlers(limiters[i]));
+            }
+            if (reassemblySlots > 0) {
+                reassemblers[i] = new ReassemblyHandler(i);
+                front = front == null ? disruptorIn.handleEventsWith(handlers(reassemblers[i]))
+                    : front.then(handlers(reassemblers[i]));
+            }
+            if (front == null) {
+                disruptorIn.handleEventsWith(logic);
+            } else {
+                front.then(logic);
+            }
+            disruptorIn.start();
+            inputs[i] = disruptorIn;
+            outputs[i] = disruptorOut;
+            if (instrumented) {
+                monitors[i] = new ObjectName("example:type=DisruptorServer,port=" + port + ",shard=" + i);
+                ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new StandardMBean(new RingMonitor(i), RingMonitorMBean.class), monitors[i]);
+            }
+
+            if (i == 0 && replayDirectory != null) {
+                System.out.println("replayed " + replay(disruptorIn.getRingBuffer()) + " packet(s) from " + replayDirectory);
+            }
+
+            // and now the receive path [single thread per shard]
+            channels[i] = openChannel();
+            receivers[i] = new ReceiveThread(i, channels[i], disruptorIn);
+            t[i] = new Thread(receivers[i], "receiver-" + i);
+            t[i].start();
+        }
+
+        System.out.println("listening with " + receiverCount + " receiver(s), " + workers + " worker(s) each, "
+                           + ringSize + " slot rings, " + profile + " profile"
+                           + (shedding ? ", shedding" : "")
+                           + ", SO_RCVBUF " + channels[0].getOption(StandardSocketOptions.SO_RCVBUF)
+                           + (direct ? ", direct buffers" : "")
+                           + (journalDirectory != null ? ", journaling to " + journalDirectory : "")
+                           + (reassemblySlots > 0 ? ", reassembling " + reassemblySlots + " messages" : "")
+                           + (addressCacheCapacity > 0 ? ", caching " + addressCacheCapacity + " peers" : "")
+                           + (rateLimit > 0 ? ", limiting clients to " + rateLimit + "/s" : "")
+                           + (instrumented ? ", instrumented." : "."));
+    }
+
+    /**
+     * Publishes every journaled packet into the ring, the shards' journals merged back into
+     * the order they were received in; must be called before the receiver for that ring
+     * starts, as the ring only allows a single publisher
+     *
+     * @return number of packets replayed
+     */
+    private long replay(RingBuffer<DatagramEvent> ringBuffer) throws IOException {
+        final List<JournalReader> readers = new ArrayList<JournalReader>();
+        final ReplayTranslator translator = new ReplayTranslator();
+        long count = 0;
+        try {
+            for (Map.Entry<String, File[]> journal : JournalReader.journals(replayDirectory).entrySet()) {
+                // whole names only, so journal-1 doesn't pick up journal-10's segments
+                if (!journal.getKey().matches("journal-[0-9]+")) continue;
+                final JournalReader reader = new JournalReader(journal.getValue());
+                readers.add(reader);
+                if (!reader.next()) readers.remove(reader);
+            }
+            while (!readers.isEmpty()) {
+                // the earliest record across the shards; there are only ever a handful
+                JournalReader reader = readers.get(0);
+                for (JournalReader r : readers) {
+                    if (r.epochNanos() < reader.epochNanos()) reader = r;
+                }
+                ringBuffer.publishEvent(translator, reader.payload(), reader.address());
+                count++;
+                if (!reader.next()) {
+                    reader.close();
+                    readers.remove(reader);
+                }
+            }
+        } finally {
+            for (JournalReader reader : readers) {
+                reader.close();
+            }
+        }
+        return count;
+    }
 
-        // and now the receive path [single thread]
-        channel = DatagramChannel.open();
+    /**
+     * Names the calling thread, and pins it if a cpu was given for its slot; slots within a
+     * shard are receiver, business logic workers, send, then journal, reassembly and rate
+     * limiter, each only if it is on
+     */
+    private void bindThread(String name, int shard, int slot) {
+        Thread.currentThread().setName(name);
+        final int index = shard * (1 + handlersPerShard()) + slot;
+        if (index < cpus.length) {
+            final boolean pinned = ThreadAffinity.pin(cpus[index]);
+            System.out.println(name + (pinned ? " pinned to cpu " : " could not be pinned to cpu ") + cpus[index]);
+        }
+    }
+
+    /**
+     * With more than one receiver every channel binds the same port with SO_REUSEPORT and the
+     * kernel spreads flows across them; a given source address always lands on the same shard
+     */
+    private DatagramChannel openChannel() throws IOException {
+        final DatagramChannel channel = DatagramChannel.open();
+        if (receiverCount > 1) {
+            if (!channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                channel.close();
+                throw new UnsupportedOperationException("SO_REUSEPORT is not supported on this platform");
+            }
+            channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        if (receiveBufferSize > 0) {
+            // before bind, so the window is there from the first packet
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+        }
         channel.socket().bind(new InetSocketAddress(port));
         channel.configureBlocking(true);
       	// channel.configureBlocking(false);
-        t = new Thread(new ReceiveThread(channel, disruptorIn));
-        t.start();
+        return channel;
+    }
+
+    /**
+     * @return packets received so far by each receiver
+     */
+    public long[] receivedCounts() {
+        final ReceiveThread[] r = receivers;
+        final long[] counts = new long[r == null ? 0 : r.length];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = r[i].received.get();
+        }
+        return counts;
+    }
+
+    /**
+     * @return packets dropped by the receivers because their ring was full; only counted with
+     *         shedding on
+     */
+    public long shedPackets() {
+        final ReceiveThread[] r = receivers;
+        long total = 0;
+        for (int i = 0; r != null && i < r.length; i++) {
+            total += r[i].shed.get();
+        }
+        return total;
+    }
 
-        System.out.println("listening.");
+    /**
+     * @return datagrams the kernel dropped because a receive socket buffer was full, across
+     *         every socket on the port; -1 where the platform doesn't report it
+     */
+    public long socketDrops() {
+        return UdpSocketStats.drops(port);
+    }
+
+    /**
+     * @return bytes allocated so far by the receive, business logic and send threads, summed
+     *         across shards
+     */
+    public long allocatedBytes() {
+        final ReceiveThread[] r = receivers;
+        final BusinessLogicHandler[] b = businessLogic;
+        final DatagramSendHandler[] s = senders;
+        long total = 0;
+        for (int i = 0; r != null && i < r.length; i++) {
+            total += r[i].allocations.get();
+        }
+        for (int i = 0; b != null && i < b.length; i++) {
+            total += b[i].allocations.get();
+        }
+        for (int i = 0; s != null && i < s.length; i++) {
+            total += s[i].allocations.get();
+        }
+        return total;
+    }
+
+    /**
+     * @return framed messages completed by the reassembly stages
+     */
+    public long reassembledMessages() {
+        long total = 0;
+        for (int i = 0; reassemblers != null && i < reassemblers.length; i++) {
+            if (reassemblers[i] != null) total += reassemblers[i].reassembler.completed.get();
+        }
+        return total;
+    }
+
+    /**
+     * @return partial messages thrown away after the reassembly timeout
+     */
+    public long evictedMessages() {
+        long total = 0;
+        for (int i = 0; reassemblers != null && i < reassemblers.length; i++) {
+            if (reassemblers[i] != null) total += reassemblers[i].reassembler.evicted.get();
+        }
+        return total;
+    }
+
+    /**
+     * @return fragments that were malformed, duplicated or found the slab full
+     */
+    public long rejectedFragments() {
+        long total = 0;
+        for (int i = 0; reassemblers != null && i < reassemblers.length; i++) {
+            if (reassemblers[i] != null) total += reassemblers[i].reassembler.rejected.get();
+        }
+        return total;
+    }
+
+    /**
+     * @return packets dropped by the rate limiters, summed across shards
+     */
+    public long limitedPackets() {
+        final RateLimitHandler[] l = limiters;
+        long total = 0;
+        for (int i = 0; l != null && i < l.length; i++) {
+            if (l[i] != null) total += l[i].limiter.limited.get();
+        }
+        return total;
+    }
+
+    /**
+     * @return the shard's n clients with the most packets dropped by the rate limiter, as
+     *         address=drops; the shared bucket of clients that found no slot shows as overflow
+     */
+    public String mostLimitedClients(int shard, int n) {
+        final StringBuilder sb = new StringBuilder();
+        if (limiters[shard] == null) return "";
+        final RateLimiter limiter = limiters[shard].limiter;
+        final boolean[] taken = new boolean[limiter.slots()];
+        for (int k = 0; k < n; k++) {
+            int worst = -1;
+            for (int s = 0; s < taken.length; s++) {
+                if (!taken[s] && limiter.drops(s) > 0 && (worst < 0 || limiter.drops(s) > limiter.drops(worst))) worst = s;
+            }
+            if (worst < 0) break;
+            taken[worst] = true;
+            if (k > 0) sb.append(' ');
+            sb.append(limiter.key(worst) == 0 ? "overflow" : String.valueOf(limiter.address(worst)))
+                .append('=').append(limiter.drops(worst));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return peers currently held in the address caches, summed across shards
+     */
+    public long peers() {
+        final ReceiveThread[] r = receivers;
+        long total = 0;
+        for (int i = 0; r != null && i < r.length; i++) {
+            if (r[i].peers != null) total += r[i].peers.size();
+        }
+        return total;
+    }
+
+    /**
+     * @return the shard's n busiest peers currently cached, most packets first, as
+     *         address=packets; empty when the cache is off
+     */
+    public String busiestPeers(int shard, int n) {
+        final AddressCache peers = receivers[shard].peers;
+        final StringBuilder sb = new StringBuilder();
+        if (peers == null) return "";
+        final int size = peers.size();
+        final boolean[] taken = new boolean[size];
+        for (int k = 0; k < Math.min(n, size); k++) {
+            int best = -1;
+            for (int e = 0; e < size; e++) {
+                if (!taken[e] && (best < 0 || peers.packets(e) > peers.packets(best))) best = e;
+            }
+            taken[best] = true;
+            if (k > 0) sb.append(' ');
+            sb.append(peers.address(best)).append('=').append(peers.packets(best));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return number of events the send handlers saw per batch, merged across shards
+     */
+    public Histogram eventsPerSendBatch() {
+        final Histogram merged = newBatchHistogram();
+        final DatagramSendHandler[] s = senders;
+        for (int i = 0; s != null && i < s.length; i++) {
+            merged.addObservations(s[i].eventsPerBatch);
+        }
+        return merged;
     }
 
+    /**
+     * @return number of datagrams actually sent per batch, merged across shards; lower than
+     *         eventsPerSendBatch only when coalescing
+     */
+    public Histogram datagramsPerSendBatch() {
+        final Histogram merged = newBatchHistogram();
+        final DatagramSendHandler[] s = senders;
+        for (int i = 0; s != null && i < s.length; i++) {
+            merged.addObservations(s[i].sendsPerBatch);
+        }
+        return merged;
+    }
+
+    private static final String[] STAGES = { "in-queue", "business", "out-queue", "end-to-end" };
+    private static final long HIGHEST_TRACKABLE_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    /**
+     * @return latency histograms for each stage since the last call, merged across shards:
+     *         in-queue is receive to business logic pick up, business is the transform and
+     *         publish, out-queue is business logic to send pick up, end-to-end is receive to sent
+     */
+    public Map<String, org.HdrHistogram.Histogram> stageLatencies() {
+        final Map<String, org.HdrHistogram.Histogram> merged = new LinkedHashMap<String, org.HdrHistogram.Histogram>();
+        for (String stage : STAGES) {
+            merged.put(stage, new org.HdrHistogram.Histogram(HIGHEST_TRACKABLE_NANOS, 2));
+        }
+        final BusinessLogicHandler[] b = businessLogic;
+        for (int i = 0; b != null && i < b.length; i++) {
+            merged.get("in-queue").add(b[i].inQueue.getIntervalHistogram());
+            merged.get("business").add(b[i].business.getIntervalHistogram());
+        }
+        final DatagramSendHandler[] s = senders;
+        for (int i = 0; s != null && i < s.length; i++) {
+            merged.get("out-queue").add(s[i].outQueue.getIntervalHistogram());
+            merged.get("end-to-end").add(s[i].endToEnd.getIntervalHistogram());
+        }
+        return merged;
+    }
+
+    /**
+     * @return number of events the business logic handlers saw per batch, merged across shards
+     */
+    public Histogram eventsPerBusinessLogicBatch() {
+        final Histogram merged = newBatchHistogram();
+        final BusinessLogicHandler[] b = businessLogic;
+        for (int i = 0; b != null && i < b.length; i++) {
+            merged.addObservations(b[i].eventsPerBatch);
+        }
+        return merged;
+    }
+
+    /**
+     * @return one line per stage with its latency percentiles since the last call, then one
+     *         line per shard with ring occupancy, as printed by the throughput reporter
+     */
+    public String instrumentationReport() {
+        final StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, org.HdrHistogram.Histogram> stage : stageLatencies().entrySet()) {
+            final org.HdrHistogram.Histogram h = stage.getValue();
+            sb.append(String.format("  %-10s 50/99/99.9%%/max us %.1f/%.1f/%.1f/%.1f%n", stage.getKey(),
+                                    h.getValueAtPercentile(50) / 1000d, h.getValueAtPercentile(99) / 1000d,
+                                    h.getValueAtPercentile(99.9) / 1000d, h.getMaxValue() / 1000d));
+        }
+        final Histogram batches = eventsPerBusinessLogicBatch();
+        if (batches.getCount() > 0) {
+            sb.append("  business batch mean/99%/max events=").append(batches.getMean())
+                .append('/').append(batches.getTwoNinesUpperBound()).append('/').append(batches.getMax())
+                .append(String.format("%n"));
+        }
+        for (int i = 0; inputs != null && i < receiverCount; i++) {
+            final RingMonitor m = new RingMonitor(i);
+            sb.append(String.format("  shard %d in free=%d business lag=%d journal lag=%d out free=%d send lag=%d%n",
+                                    i, m.getInRemainingCapacity(), m.getBusinessLogicLag(), m.getJournalLag(),
+                                    m.getOutRemainingCapacity(), m.getSendLag()));
+            final AddressCache peers = receivers[i].peers;
+            if (peers != null) {
+                sb.append(String.format("  shard %d peers=%d/%d hits=%d misses=%d evicted=%d busiest: %s%n",
+                                        i, peers.size(), peers.capacity(), peers.hits.get(), peers.misses.get(),
+                                        peers.evictions.get(), busiestPeers(i, 3)));
+            }
+            if (limiters[i] != null) {
+                sb.append(String.format("  shard %d limited=%d most limited: %s%n",
+                                        i, limiters[i].limiter.limited.get(), mostLimitedClients(i, 3)));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static SingleWriterRecorder newStageRecorder() {
+        return new SingleWriterRecorder(HIGHEST_TRACKABLE_NANOS, 2);
+    }
+
+    /**
+     * Reads a shard's ring cursors and handler sequences; every read is a volatile load
+     */
+    private class RingMonitor implements RingMonitorMBean {
+        private final int shard;
+
+        RingMonitor(int shard) {
+            this.shard = shard;
+        }
+
+        public long getReceived() {
+            return receivers[shard].received.get();
+        }
+
+        public long getShed() {
+            return receivers[shard].shed.get();
+        }
+
+        public long getPeers() {
+            final AddressCache peers = receivers[shard].peers;
+            return peers == null ? -1 : peers.size();
+        }
+
+        public long getLimited() {
+            return limiters[shard] == null ? -1 : limiters[shard].limiter.limited.get();
+        }
+
+        public long getInRemainingCapacity() {
+            return inputs[shard].getRingBuffer().remainingCapacity();
+        }
+
+        public long getOutRemainingCapacity() {
+            return outputs[shard].getRingBuffer().remainingCapacity();
+        }
+
+        public long getBusinessLogicLag() {
+            long lag = 0;
+            for (int k = 0; k < workers; k++) {
+                lag = Math.max(lag, lag(inputs[shard], businessLogic[shard * workers + k].processed));
+            }
+            return lag;
+        }
+
+        public long getJournalLag() {
+            return journals[shard] == null ? -1 : lag(inputs[shard], journals[shard].processed);
+        }
+
+        public long getSendLag() {
+            return lag(outputs[shard], senders[shard].processed);
+        }
+
+        private long lag(Disruptor<DatagramEvent> disruptor, Sequence processed) {
+            return processed == null ? 0 : disruptor.getCursor() - processed.get();
+        }
+    }
+
+    /**
+     * Stops accepting packets, then drains what is already in the pipeline: closes the channels
+     * and waits for the receivers to exit, then gives the handlers up to the drain timeout to
+     * empty the input rings and after them the output rings, so replies to packets already
+     * received still go out. Anything left is abandoned and the handlers are halted either
+     * way, and the send channels closed. Prints how many events were flushed and abandoned,
+     * and whether every handler thread had exited; see flushedEvents() and abandonedEvents()
+     */
     public void stop() throws Exception {
 
         // early exit
         if (t == null) return;
-        channel.close();
-        t.interrupt();
-        t.join();
+        for (int i = 0; i < receiverCount; i++) {
+            channels[i].close();
+            t[i].interrupt();
+        }
+        for (int i = 0; i < receiverCount; i++) {
+            t[i].join();
+        }
 
+        // nothing more is published into the input rings, only what is queued is left
+        final long start = System.nanoTime();
+        final long deadline = start + drainTimeoutNanos;
+        final long[] before = processed();
+        for (int i = 0; i < receiverCount; i++) {
+            drain(inputs[i], deadline);
+        }
+        // the business logic has stopped too, so now the output rings are final
+        for (int i = 0; i < receiverCount; i++) {
+            drain(outputs[i], deadline);
+        }
         executor.shutdown();
+        final boolean terminated = executor.awaitTermination(1, TimeUnit.SECONDS);
+        // the senders are done with them, or halted; a sender still stuck in send() is let go
+        for (int i = 0; i < receiverCount; i++) {
+            senders[i].channel.close();
+        }
+        final long[] after = processed();
+        final long[] left = backlog();
+        flushedEvents = after[0] - before[0] + after[1] - before[1];
+        abandonedEvents = left[0] + left[1];
+        System.out.println("stopped after " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms: "
+                           + "input rings flushed " + (after[0] - before[0]) + " abandoned " + left[0]
+                           + ", output rings flushed " + (after[1] - before[1]) + " abandoned " + left[1]
+                           + (terminated ? "" : ", handler threads still running"));
+
+        for (ObjectName monitor : monitors) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(monitor);
+        }
         t = null;
-	channel = null;
+	channels = null;
+    }
+
+    /**
+     * Waits for every handler on the ring to catch up with its cursor, then halts them; halts
+     * them anyway once the deadline has passed
+     */
+    private static void drain(Disruptor<DatagramEvent> disruptor, long deadline) {
+        try {
+            disruptor.shutdown(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (com.lmax.disruptor.TimeoutException e) {
+            disruptor.halt();
+        }
+    }
+
+    /**
+     * @return events taken off the input and output rings by their last stage, the business
+     *         logic and the sender, summed across shards; only the difference between two calls
+     *         means anything. With several workers, an input event counts once the slowest has
+     *         passed it
+     */
+    private long[] processed() {
+        final long[] total = new long[2];
+        for (int i = 0; i < receiverCount; i++) {
+            total[0] += businessLogicProcessed(i);
+            total[1] += senders[i].processed.get();
+        }
+        return total;
+    }
+
+    /**
+     * @return events on the input and output rings not yet taken by their last stage, summed
+     *         across shards
+     */
+    private long[] backlog() {
+        final long[] total = new long[2];
+        for (int i = 0; i < receiverCount; i++) {
+            total[0] += inputs[i].getCursor() - businessLogicProcessed(i);
+            total[1] += outputs[i].getCursor() - senders[i].processed.get();
+        }
+        return total;
+    }
+
+    private long businessLogicProcessed(int shard) {
+        long min = Long.MAX_VALUE;
+        for (int k = 0; k < workers; k++) {
+            min = Math.min(min, businessLogic[shard * workers + k].processed.get());
+        }
+        return min;
+    }
+
+    /**
+     * @return events the last stop() drained out of the rings
+     */
+    public long flushedEvents() {
+        return flushedEvents;
+    }
+
+    /**
+     * @return events the last stop() left behind because the drain timed out
+     */
+    public long abandonedEvents() {
+        return abandonedEvents;
     }
 
     /**
-     * Implements the receive loop; this thread will never end until interrupted
+     * Implements the receive loop; runs until its channel is closed by stop()
+     * <p>
+     * The blocking receive happens inside translateTo, so the datagram is written straight into
+     * the claimed slot rather than into a staging buffer. This is only OK because we are the
+     * single publisher; the claimed sequence can't progress while we are blocked in receive()
+     * <p>
+     * Nothing is allocated per packet: the thread is its own translator, and the sender address
+     * comes from the channel, which (from JDK 16) keeps the last sender's InetSocketAddress and
+     * hands the same instance back while the peer doesn't change. When peers alternate the
+     * channel has to build a new one, which the address cache swaps for the canonical instance,
+     * so only that short lived copy is garbage
      */
-    private class ReceiveThread implements Runnable {
+    private class ReceiveThread implements Runnable, EventTranslator<DatagramEvent> {
+        private final int shard;
         private final DatagramChannel channel;
-        private final Disruptor disruptor;
-        public ReceiveThread(DatagramChannel channel, Disruptor disruptor) {
+        private final RingBuffer<DatagramEvent> ringBuffer;
+        // padded, single writer; read by the throughput reporter
+        private final Sequence received = new Sequence(0);
+        private final Sequence shed = new Sequence(0);
+        private final ByteBuffer scratch;
+        final AllocationCounter allocations = new AllocationCounter();
+        final AddressCache peers;
+        // set once the channel has been closed under us
+        private boolean closed;
+        public ReceiveThread(int shard, DatagramChannel channel, Disruptor<DatagramEvent> disruptor) {
+            this.shard = shard;
             this.channel = channel;
-            this.disruptor = disruptor;
+            this.ringBuffer = disruptor.getRingBuffer();
+            this.scratch = shedding ? ByteBuffer.allocateDirect(BYTE_ARRAY_SIZE) : null;
+            this.peers = addressCacheCapacity > 0 ? new AddressCache(addressCacheCapacity) : null;
         }
         public void run() {
-            final ByteBuffer buffer = ByteBuffer.allocate(BYTE_ARRAY_SIZE);
+            bindThread("receiver-" + shard, shard, 0);
+            while(!closed) {
+                // block to receive and wait for next round
+                if (!shedding) {
+                    ringBuffer.publishEvent(this);
+                } else if (!ringBuffer.tryPublishEvent(this)) {
+                    shed();
+                }
+            }
+        }
+        /**
+         * The ring is full: take the next datagram off the socket and drop it, so the kernel
+         * buffer keeps draining and the loss is counted here
+         */
+        private void shed() {
+            scratch.clear();
+            try {
+                channel.receive(scratch);
+                shed.set(shed.get() + 1);
+            } catch (ClosedChannelException e) {
+                closed = true;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        public void translateTo(DatagramEvent event, long sequence) {
+            // clear the address first, so a failed receive is skipped by the handlers
+            event.address = null;
+            event.replayed = false;
+            event.limited = false;
+            event.buffer.clear();
             try {
-		while(true) {
-		    // block to receive and wait for next round
-		    buffer.clear();
-		    final SocketAddress socket = channel.receive(buffer);
-                    // if (socket == null) continue;
-		    buffer.flip();
-		    disruptor.publishEvent(new EventTranslator<DatagramEvent>() {
-			    public void translateTo(DatagramEvent event, long sequence) {
-				event.length = buffer.remaining();
-				buffer.get(event.buffer, 0, event.length);
-				event.address = socket;
-			    }
-			});
-		}
-	    } catch (IOException e) {
-		throw new RuntimeException(e);
-	    }
+                final SocketAddress address = channel.receive(event.buffer);
+                event.receivedNanos = System.nanoTime();
+                if (peers != null && address != null) {
+                    event.address = peers.intern(address, event.receivedNanos);
+                    event.peer = peers.key();
+                } else {
+                    event.address = address;
+                    event.peer = 0;
+                }
+                final long count = received.get() + 1;
+                received.set(count);
+                // there is no end of batch on this side, sample every so often instead
+                if ((count & 63) == 1) {
+                    allocations.sample();
+                }
+            } catch (ClosedChannelException e) {
+                // stop() closed the channel; the slot is still published, with no address,
+                // so the handlers skip it
+                closed = true;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            } finally {
+                event.buffer.flip();
+            }
         }
     }
 
     /**
      * Datagram value event
      * This is the value event we will use to pass data between threads
+     * <p>
+     * Between stages the buffer is kept flipped, ie: position is 0 and limit is the datagram length
      */
     private static class DatagramEvent  {
-        public byte[] buffer;
+        public ByteBuffer buffer;
         public SocketAddress address;
-        public int length;
+        public long receivedNanos;
+        // when the business logic published it; only stamped when instrumented
+        public long businessNanos;
+        // true when the packet came from a journal rather than the network
+        public boolean replayed;
+        // set by the reassembly stage: the slab slot of a completed message, or negative
+        public int message;
+        // the sender as a primitive, see AddressCache.key(); 0 when not known
+        public long peer;
+        // set by the rate limiting stage when the sender is over its limit; later stages skip it
+        public boolean limited;
+
+        public static final EventFactory<DatagramEvent> EVENT_FACTORY = factory(false);
+        public static final EventFactory<DatagramEvent> DIRECT_EVENT_FACTORY = factory(true);
 
-        public static final EventFactory<DatagramEvent> EVENT_FACTORY = new EventFactory<DatagramEvent>() {
-            public DatagramEvent newInstance() {
-                DatagramEvent e = new DatagramEvent();
-                e.buffer = new byte[BYTE_ARRAY_SIZE];
-                e.address = null;
-                e.length = 0;
-		return e;
+        private static EventFactory<DatagramEvent> factory(final boolean direct) {
+            return new EventFactory<DatagramEvent>() {
+                public DatagramEvent newInstance() {
+                    DatagramEvent e = new DatagramEvent();
+                    e.buffer = direct
+                        ? ByteBuffer.allocateDirect(BYTE_ARRAY_SIZE)
+                        : ByteBuffer.allocate(BYTE_ARRAY_SIZE);
+                    e.buffer.flip();
+                    e.address = null;
+                    return e;
+                }
+            };
+        }
+
+        /**
+         * Copies the datagram into dst without touching the buffer position, so that several
+         * handlers can read the same slot concurrently
+         */
+        public int getBytes(byte[] dst) {
+            final int length = buffer.limit();
+            if (buffer.hasArray()) {
+                System.arraycopy(buffer.array(), buffer.arrayOffset(), dst, 0, length);
+            } else {
+                for (int i = 0; i < length; i++) {
+                    dst[i] = buffer.get(i);
+                }
             }
-        };
+            return length;
+        }
 
     }
 
 
     /**
      * Sends the datagrams to the endpoints
-     * Don't bother with endOfBatch, because it's assumed each udp packet goes to a different address
+     * <p>
+     * The slot's buffer is handed straight to the channel; with direct buffers there is no copy.
+     * By default every event is sent as it arrives: each udp packet is assumed to go to a
+     * different address, and java has no sendmmsg to hand the kernel a whole batch at once.
+     * <p>
+     * With coalescing on, consecutive replies to the same address are appended into a single
+     * datagram, each as an unsigned big-endian short length followed by that many bytes. That
+     * is flushed when the address changes, when the next reply would not fit, or at endOfBatch,
+     * so a reply is never held waiting for the next event. This changes the wire format (every
+     * datagram is a run of length prefixed replies, even if it carries just one) so only use it
+     * with clients that split them again.
      */
-    private class DatagramSendHandler implements EventHandler<DatagramEvent> {
+    private class DatagramSendHandler implements SequenceReportingEventHandler<DatagramEvent>, LifecycleAware {
+        final int shard;
 	final DatagramChannel channel;
-	final ByteBuffer buffer;
-	public DatagramSendHandler() throws IOException, SocketException {
+        final ByteBuffer pending;
+        SocketAddress pendingAddress;
+
+        // batch statistics, written by this handler only and read by the reporter without locking
+        final Histogram eventsPerBatch = newBatchHistogram();
+        final Histogram sendsPerBatch = newBatchHistogram();
+        int batchEvents;
+        int batchSends;
+        final SingleWriterRecorder outQueue = newStageRecorder();
+        final SingleWriterRecorder endToEnd = newStageRecorder();
+        final AllocationCounter allocations = new AllocationCounter();
+        Sequence processed;
+
+	public DatagramSendHandler(int shard) throws IOException, SocketException {
+            this.shard = shard;
 	    channel = DatagramChannel.open();
-            buffer = ByteBuffer.allocate(BYTE_ARRAY_SIZE);
+            pending = coalesceBytes <= 0 ? null
+                : direct ? ByteBuffer.allocateDirect(coalesceBytes) : ByteBuffer.allocate(coalesceBytes);
 	}
 
         public void onEvent(DatagramEvent event, long sequence, boolean endOfBatch) throws IOException {
-            buffer.clear();
-            buffer.put(event.buffer, 0, event.length);
-            buffer.flip();
-            channel.send(buffer, event.address);
+            if (event.address != null) {
+                batchEvents++;
+                final long start = instrumented ? System.nanoTime() : 0;
+                if (pending == null) {
+                    channel.send(event.buffer, event.address);
+                    batchSends++;
+                } else {
+                    coalesce(event);
+                }
+                if (instrumented) {
+                    // a coalesced reply counts as sent once it is in the pending datagram
+                    outQueue.recordValue(Math.min(start - event.businessNanos, HIGHEST_TRACKABLE_NANOS));
+                    endToEnd.recordValue(Math.min(System.nanoTime() - event.receivedNanos, HIGHEST_TRACKABLE_NANOS));
+                }
+            }
+            if (endOfBatch) {
+                flush();
+                allocations.sample();
+                eventsPerBatch.addObservation(batchEvents);
+                sendsPerBatch.addObservation(batchSends);
+                batchEvents = 0;
+                batchSends = 0;
+            }
+        }
+
+        public void setSequenceCallback(Sequence sequence) {
+            this.processed = sequence;
+        }
+
+        public void onStart() {
+            bindThread("send-" + shard, shard, 1 + workers);
+        }
+
+        public void onShutdown() {
+        }
+
+        private void coalesce(DatagramEvent event) throws IOException {
+            // setCoalescing() makes room for at least one whole slot and its length
+            final int length = event.buffer.remaining();
+            if (pendingAddress != null
+                && (pending.remaining() < 2 + length || !pendingAddress.equals(event.address))) {
+                flush();
+            }
+            pendingAddress = event.address;
+            pending.putShort((short) length);
+            pending.put(event.buffer);
+        }
+
+        private void flush() throws IOException {
+            if (pendingAddress == null) return;
+            pending.flip();
+            channel.send(pending, pendingAddress);
+            pending.clear();
+            pendingAddress = null;
+            batchSends++;
         }
     }
 
+    /**
+     * Buckets are powers of two up to the ring size, since a batch can never be bigger than that
+     */
+    private Histogram newBatchHistogram() {
+        final long[] bounds = new long[Integer.numberOfTrailingZeros(ringSize) + 1];
+        for (int i = 0; i < bounds.length; i++) {
+            bounds[i] = 1L << i;
+        }
+        return new Histogram(bounds);
+    }
+
     /**
      * Business logic goes here
+     * <p>
+     * The transform reads the input slot and writes straight into the claimed output slot, so
+     * there is no intermediate array and nothing is allocated per packet
+     * <p>
+     * With several workers on a ring every worker sees every event, but each only handles the
+     * source addresses that hash to it. A WorkerPool would spread load more evenly, but hands
+     * consecutive packets from one peer to different threads and so reorders their replies
      */
-    private class BusinessLogicHandler implements EventHandler<DatagramEvent> {
+    private class BusinessLogicHandler implements SequenceReportingEventHandler<DatagramEvent>, LifecycleAware {
+        final int shard;
+        final int index;
         final RingBuffer<DatagramEvent> ringbuffer;
-        final EventTranslatorTwoArg<DatagramEvent, byte[], SocketAddress> translator;
+        final TransformingTranslator translator;
+        final ByteTransform transform;
+        final FragmentTranslator fragments;
+        final ByteBuffer reply;
+        final AllocationCounter allocations = new AllocationCounter();
+        final SingleWriterRecorder inQueue = newStageRecorder();
+        final SingleWriterRecorder business = newStageRecorder();
+        final Histogram eventsPerBatch = newBatchHistogram();
+        int batchEvents;
+        Sequence processed;
 
-        public BusinessLogicHandler(Disruptor<DatagramEvent> output) {
+        public BusinessLogicHandler(int shard, int index, Disruptor<DatagramEvent> output, ByteTransform transform) {
+            this.shard = shard;
+            this.index = index;
             // translator will be used to write events into the buffer
-            this.translator = new ByteToDatagramEventTranslator();
+            this.translator = new TransformingTranslator(transform);
+            this.transform = transform;
+            this.fragments = new FragmentTranslator();
+            this.reply = reassemblySlots > 0 ? ByteBuffer.allocate(Framing.MAX_MESSAGE) : null;
             // get a hold of the ringbuffer, we can't publish direct to Disruptor as the DSL doesn't
             // provide a garbage-free two-arg publishEvent method
             this.ringbuffer = output.getRingBuffer();
@@ -168,63 +1311,248 @@ public class DisruptorServer {
 
         /// process events
         public void onEvent(DatagramEvent event, long sequence, boolean endOfBatch) {
-            // then publish direct to buffer
-            final byte[] toSendBytes = toUpperCase(event.buffer, event.length);
-            ringbuffer.publishEvent(translator, toSendBytes, event.address);
+            batchEvents++;
+            if (reassemblySlots > 0) {
+                if (event.message >= 0 && owns(event.address)) {
+                    onMessage(event);
+                }
+            } else if (event.address != null && !event.limited && owns(event.address)) {
+                if (instrumented) {
+                    final long start = System.nanoTime();
+                    inQueue.recordValue(Math.min(start - event.receivedNanos, HIGHEST_TRACKABLE_NANOS));
+                    translator.receivedNanos = event.receivedNanos;
+                    ringbuffer.publishEvent(translator, event.buffer, event.address);
+                    business.recordValue(Math.min(System.nanoTime() - start, HIGHEST_TRACKABLE_NANOS));
+                } else {
+                    ringbuffer.publishEvent(translator, event.buffer, event.address);
+                }
+            }
+            if (endOfBatch) {
+                allocations.sample();
+                eventsPerBatch.addObservation(batchEvents);
+                batchEvents = 0;
+            }
+        }
+
+        /**
+         * Transforms a reassembled message into the reply buffer, hands the slab slot straight
+         * back, then publishes the reply one fragment per output event
+         */
+        private void onMessage(DatagramEvent event) {
+            final long start = instrumented ? System.nanoTime() : 0;
+            final Reassembler reassembler = reassemblers[shard].reassembler;
+            final ByteBuffer message = reassembler.message(event.message);
+            fragments.requestId = reassembler.requestId(event.message);
+            fragments.receivedNanos = event.receivedNanos;
+            reply.clear();
+            transform.transform(message, reply);
+            reply.flip();
+            reassembler.release(event.message);
+
+            final int count = Framing.fragmentCount(reply.limit());
+            for (int i = 0; i < count; i++) {
+                fragments.index = i;
+                ringbuffer.publishEvent(fragments, reply, event.address);
+            }
+            if (instrumented) {
+                inQueue.recordValue(Math.min(start - event.receivedNanos, HIGHEST_TRACKABLE_NANOS));
+                business.recordValue(Math.min(System.nanoTime() - start, HIGHEST_TRACKABLE_NANOS));
+            }
+        }
+
+        public void setSequenceCallback(Sequence sequence) {
+            this.processed = sequence;
+        }
+
+        public void onStart() {
+            bindThread(workers == 1 ? "business-" + shard : "business-" + shard + "-" + index, shard, 1 + index);
+        }
+
+        public void onShutdown() {
         }
 
-        private byte[] toUpperCase(byte[] input, int length) {
-            return new String(input).toUpperCase().getBytes();
+        private boolean owns(SocketAddress address) {
+            if (workers == 1) return true;
+            // spread the bits, as a port-heavy hash leaves the low bits badly skewed
+            int h = address.hashCode() * 0x9E3779B9;
+            h ^= h >>> 16;
+            return (h & 0x7fffffff) % workers == index;
         }
     }
 
     /**
-     * Print to console
-     * Just to show the benefit of disruptor and mimic IO cost
+     * Writes every received packet to a memory-mapped rolling journal
+     * <p>
+     * Runs alongside the business logic on the input ring. The payload is copied out with an
+     * absolute read, as the business logic is reading the same slot at the same time, and the
+     * fsync policy is applied once per batch
      */
-    private class PrintToConsoleHandler implements EventHandler<DatagramEvent> {
+    private class JournalHandler implements SequenceReportingEventHandler<DatagramEvent>, LifecycleAware {
+        private final int shard;
+        private final Journal journal;
+        Sequence processed;
+        private final byte[] bytes = new byte[BYTE_ARRAY_SIZE];
 
-        private final int FLUSH_AFTER_SIZE = 1024;
-        private final byte[] NEWLINE = System.getProperty("line.separator").getBytes();
+        public JournalHandler(int shard) throws IOException {
+            this.shard = shard;
+            this.journal = new Journal(journalDirectory, "journal-" + shard, journalSegmentBytes, fsync, fsyncIntervalNanos);
+        }
 
-        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
-	private final Writer writer;
+        public void onEvent(DatagramEvent event, long sequence, boolean endOfBatch) {
+            try {
+                if (event.address != null && !event.replayed) {
+                    final int length = event.getBytes(bytes);
+                    journal.append(event.receivedNanos, event.address, bytes, length);
+                }
+                if (endOfBatch) journal.endOfBatch();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
 
-	public PrintToConsoleHandler() throws IOException {
-	    out.reset();
-	    writer = new OutputStreamWriter(new FileOutputStream("output-log.txt"), "utf-8");
+        public void setSequenceCallback(Sequence sequence) {
+            this.processed = sequence;
+        }
 
-	}
+        public void onStart() {
+            bindThread("journal-" + shard, shard, 2 + workers);
+        }
+
+        public void onShutdown() {
+            journal.close();
+        }
+    }
+
+    /**
+     * Copies a journaled packet into the input ring; payloads longer than a slot are truncated
+     */
+    private static class ReplayTranslator implements EventTranslatorTwoArg<DatagramEvent, ByteBuffer, SocketAddress> {
+        public void translateTo(DatagramEvent event, long sequence, ByteBuffer payload, SocketAddress address) {
+            event.address = address;
+            event.peer = AddressCache.key(address);
+            event.replayed = true;
+            event.limited = false;
+            event.receivedNanos = System.nanoTime();
+            event.buffer.clear();
+            if (payload.remaining() > event.buffer.remaining()) {
+                payload.limit(payload.position() + event.buffer.remaining());
+            }
+            event.buffer.put(payload);
+            event.buffer.flip();
+        }
+    }
+
+    /**
+     * Collects framed fragments into whole messages, in front of the business logic
+     * <p>
+     * Marks each event with the slab slot of the message it completed, or a negative value if
+     * there is nothing for the business logic to do. Expired partial messages are swept at the
+     * end of a batch, at most twice per timeout, so an idle shard keeps them until traffic
+     * resumes
+     */
+    private class ReassemblyHandler implements EventHandler<DatagramEvent>, LifecycleAware {
+        private final int shard;
+        final Reassembler reassembler = new Reassembler(reassemblySlots, reassemblyTimeoutNanos);
+        private long lastSweep;
+
+        ReassemblyHandler(int shard) {
+            this.shard = shard;
+        }
+
+        public void onEvent(DatagramEvent event, long sequence, boolean endOfBatch) {
+            event.message = event.address == null || event.limited
+                ? Reassembler.REJECTED
+                : reassembler.accept(event.address, event.buffer, event.receivedNanos);
+            if (endOfBatch) {
+                final long now = System.nanoTime();
+                if (now - lastSweep > reassemblyTimeoutNanos / 2) {
+                    reassembler.evictExpired(now);
+                    lastSweep = now;
+                }
+            }
+        }
+
+        public void onStart() {
+            bindThread("reassembly-" + shard, shard, 2 + workers + (journalDirectory != null ? 1 : 0));
+        }
+
+        public void onShutdown() {
+        }
+    }
+
+    /**
+     * Drops packets from clients over their rate, in front of everything else on the input ring
+     * <p>
+     * Marks the event rather than clearing the address, since the journal reads the same slot
+     * at the same time. Uses the receive time as now, so a well behaved client pays only the
+     * table lookup and the hop between stages
+     */
+    private class RateLimitHandler implements EventHandler<DatagramEvent>, LifecycleAware {
+        private final int shard;
+        final RateLimiter limiter = new RateLimiter(rateLimit, rateBurst, rateClients);
+
+        RateLimitHandler(int shard) {
+            this.shard = shard;
+        }
 
         public void onEvent(DatagramEvent event, long sequence, boolean endOfBatch) {
-            out.write(event.buffer, 0, event.length);
-            out.write(NEWLINE, 0, NEWLINE.length);
-            if (endOfBatch || (out.size() > FLUSH_AFTER_SIZE)) {
-		try {
-		    writer.write(out.toString());
-		} catch (IOException e) {
-		    System.out.println("failed to write: ");
-		    System.out.println(e);
-		    e.printStackTrace();
-		    throw new RuntimeException(e);
-		}
-                out.reset();
+            if (event.address != null && event.peer != 0) {
+                event.limited = !limiter.allow(event.peer, event.address, event.receivedNanos);
             }
+        }
 
+        public void onStart() {
+            bindThread("ratelimit-" + shard, shard,
+                       2 + workers + (journalDirectory != null ? 1 : 0) + (reassemblySlots > 0 ? 1 : 0));
+        }
+
+        public void onShutdown() {
+        }
+    }
+
+    /**
+     * Writes one fragment of a reply into an output event; the owning handler sets the request
+     * id, the fragment index and the receive time before each publish
+     */
+    private class FragmentTranslator implements EventTranslatorTwoArg<DatagramEvent, ByteBuffer, SocketAddress> {
+        int requestId;
+        int index;
+        long receivedNanos;
+
+        public void translateTo(DatagramEvent event, long sequence, ByteBuffer reply, SocketAddress address) {
+            event.address = address;
+            event.buffer.clear();
+            Framing.putFragment(event.buffer, requestId, reply, index);
+            event.buffer.flip();
+            if (instrumented) {
+                event.receivedNanos = receivedNanos;
+                event.businessNanos = System.nanoTime();
+            }
         }
     }
 
     /**
-     * Pushes an output event onto the target disruptor
+     * Pushes an output event onto the target disruptor, running the transform on the way
      * <p>
      * This uses the EventTranslatorTwoArg which has a special publishEvent facility on the ringbuffer
      * to avoid generating any garbage
      */
-    private class ByteToDatagramEventTranslator implements EventTranslatorTwoArg<DatagramEvent, byte[], SocketAddress> {
-        public void translateTo(DatagramEvent event, long sequence, byte[] bytes, SocketAddress address) {
+    private class TransformingTranslator implements EventTranslatorTwoArg<DatagramEvent, ByteBuffer, SocketAddress> {
+        private final ByteTransform transform;
+        // carried over from the input event by the owning handler, as there is no third argument
+        long receivedNanos;
+        public TransformingTranslator(ByteTransform transform) {
+            this.transform = transform;
+        }
+        public void translateTo(DatagramEvent event, long sequence, ByteBuffer input, SocketAddress address) {
             event.address = address;
-            event.length = bytes.length;
-            System.arraycopy(bytes, 0, event.buffer, 0, bytes.length);
+            event.buffer.clear();
+            transform.transform(input, event.buffer);
+            event.buffer.flip();
+            if (instrumented) {
+                event.receivedNanos = receivedNanos;
+                event.businessNanos = System.nanoTime();
+            }
         }
     }
 
@@ -0,0 +1,73 @@
+package example;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Wire format for messages bigger than one datagram
+ * <p>
+ * Every datagram starts with an 8 byte header, big-endian: int request id, unsigned short
+ * fragment index and unsigned short fragment count. A message is cut into fragments of
+ * FRAGMENT_PAYLOAD bytes, the last one possibly shorter, so a fragment's offset in the message
+ * is its index times FRAGMENT_PAYLOAD. Replies come back the same way, carrying the request id
+ * they answer. A message that fits in one datagram is a single fragment, index 0 of 1.
+ */
+public final class Framing {
+
+    public static final int HEADER_SIZE = 8;
+    /** Largest datagram, header included; one ring slot */
+    public static final int FRAGMENT_SIZE = 1024;
+    public static final int FRAGMENT_PAYLOAD = FRAGMENT_SIZE - HEADER_SIZE;
+    public static final int MAX_MESSAGE = 64 * 1024;
+    public static final int MAX_FRAGMENTS = (MAX_MESSAGE + FRAGMENT_PAYLOAD - 1) / FRAGMENT_PAYLOAD;
+
+    private Framing() {
+    }
+
+    /**
+     * @return fragments needed to carry length bytes; at least one
+     */
+    public static int fragmentCount(int length) {
+        return Math.max(1, (length + FRAGMENT_PAYLOAD - 1) / FRAGMENT_PAYLOAD);
+    }
+
+    /**
+     * Writes the header at dst's position and moves past it
+     */
+    public static void putHeader(ByteBuffer dst, int requestId, int index, int count) {
+        dst.putInt(requestId);
+        dst.putShort((short) index);
+        dst.putShort((short) count);
+    }
+
+    /**
+     * Writes fragment index of message, header and all, at dst's position. Reads message from 0
+     * to its limit without moving its position
+     */
+    public static void putFragment(ByteBuffer dst, int requestId, ByteBuffer message, int index) {
+        final int count = fragmentCount(message.limit());
+        final int from = index * FRAGMENT_PAYLOAD;
+        final int to = Math.min(message.limit(), from + FRAGMENT_PAYLOAD);
+        putHeader(dst, requestId, index, count);
+        if (message.hasArray()) {
+            dst.put(message.array(), message.arrayOffset() + from, to - from);
+        } else {
+            for (int i = from; i < to; i++) {
+                dst.put(message.get(i));
+            }
+        }
+    }
+
+    // readers take a flipped datagram and read absolute, so the buffer can be shared
+
+    public static int requestId(ByteBuffer datagram) {
+        return datagram.getInt(0);
+    }
+
+    public static int fragmentIndex(ByteBuffer datagram) {
+        return datagram.getShort(4) & 0xffff;
+    }
+
+    public static int fragmentCount(ByteBuffer datagram) {
+        return datagram.getShort(6) & 0xffff;
+    }
+}
@@ -0,0 +1,23 @@
+package example;
+
+/**
+ * When a journal forces its mapped segment out to disk
+ */
+public enum FsyncPolicy {
+
+    /** Leave write back to the kernel; survives a process crash but not a machine crash */
+    NONE,
+
+    /** Force at the end of every batch; durable once a batch is handled, and the slowest */
+    BATCH,
+
+    /**
+     * Force at the end of a batch once the interval has passed since the last force, bounding
+     * how much a machine crash can lose
+     */
+    INTERVAL;
+
+    public static FsyncPolicy fromName(String name) {
+        return valueOf(name.trim().toUpperCase().replace('-', '_'));
+    }
+}
@@ -0,0 +1,166 @@
+package example;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+
+/**
+ * Append-only, memory-mapped, rolling log of received datagrams
+ * <p>
+ * Each segment is a file of fixed size, allocated up front and mapped in full, so appending is
+ * a copy into memory and the kernel does the writing. When a record does not fit in what is
+ * left the journal rolls to the next segment. The peer's address bytes are copied out once
+ * each time the sender changes, and reused while it stays the same object, which with the
+ * server's address cache it usually does; nothing else is allocated per record. Single writer
+ * only.
+ * <p>
+ * Segment layout, big-endian:
+ * <pre>
+ *   header: int magic, int version, long epoch millis, long nanoTime, both taken at open
+ *   record: int record length (including this field), long nanoTime received,
+ *           short port, byte address length (4 or 16), address, payload
+ * </pre>
+ * A record length of 0 marks the end of the segment. The file is zero filled when allocated
+ * and each record's length is written last, after its body, so a process that dies half way
+ * through a record leaves 0 where its length goes and the segment reads as ending there.
+ */
+public class Journal implements Closeable {
+
+    static final int MAGIC = 0x4a524e4c; // "JRNL"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 24;
+    static final int RECORD_HEADER_SIZE = 4 + 8 + 2 + 1;
+    static final String SUFFIX = ".log";
+
+    private final File directory;
+    private final String name;
+    private final int segmentBytes;
+    private final FsyncPolicy fsync;
+    private final long fsyncIntervalNanos;
+
+    private MappedByteBuffer segment;
+    private int segmentIndex = -1;
+    private boolean dirty;
+    private long lastForced;
+    // the last sender's address bytes, for as long as it is the same object
+    private InetAddress lastIp;
+    private byte[] lastIpBytes;
+
+    /**
+     * @param name segments are written as name-000000.log, name-000001.log and so on,
+     *             carrying on after any segments already in the directory
+     */
+    public Journal(File directory, String name, int segmentBytes, FsyncPolicy fsync, long fsyncIntervalNanos)
+        throws IOException {
+        if (segmentBytes < HEADER_SIZE + RECORD_HEADER_SIZE + 16) {
+            throw new IllegalArgumentException("segment too small: " + segmentBytes);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("could not create journal directory " + directory);
+        }
+        this.directory = directory;
+        this.name = name;
+        this.segmentBytes = segmentBytes;
+        this.fsync = fsync;
+        this.fsyncIntervalNanos = fsyncIntervalNanos;
+        while (segmentFile(directory, name, segmentIndex + 1).exists()) {
+            segmentIndex++;
+        }
+        roll();
+    }
+
+    /**
+     * Appends one datagram; the payload is copied from bytes[0..length)
+     */
+    public void append(long nanos, SocketAddress address, byte[] bytes, int length) throws IOException {
+        final InetSocketAddress peer = (InetSocketAddress) address;
+        final InetAddress ip = peer.getAddress();
+        if (ip != lastIp) {
+            lastIpBytes = ip.getAddress();
+            lastIp = ip;
+        }
+        final int addressLength = lastIpBytes.length;
+        final int recordLength = RECORD_HEADER_SIZE + addressLength + length;
+        if (recordLength > segmentBytes - HEADER_SIZE) {
+            throw new IllegalArgumentException("record of " + recordLength + " bytes does not fit a segment");
+        }
+        // keep 4 bytes spare for the end marker
+        if (segment.remaining() < recordLength + 4) {
+            roll();
+        }
+
+        // the body first, then the length that makes it visible to a reader
+        final int start = segment.position();
+        segment.position(start + 4);
+        segment.putLong(nanos);
+        segment.putShort((short) peer.getPort());
+        segment.put((byte) addressLength);
+        segment.put(lastIpBytes);
+        segment.put(bytes, 0, length);
+        segment.putInt(start, recordLength);
+        dirty = true;
+    }
+
+    /**
+     * Applies the fsync policy; call once the writer has caught up, eg: at the end of a batch
+     */
+    public void endOfBatch() {
+        if (!dirty) return;
+        switch (fsync) {
+        case BATCH:
+            force();
+            break;
+        case INTERVAL:
+            if (System.nanoTime() - lastForced >= fsyncIntervalNanos) force();
+            break;
+        default:
+            break;
+        }
+    }
+
+    private void force() {
+        segment.force();
+        dirty = false;
+        lastForced = System.nanoTime();
+    }
+
+    /**
+     * Forces what is left regardless of policy; the journal can't be used afterwards
+     */
+    public void close() {
+        if (segment == null) return;
+        force();
+        segment = null;
+    }
+
+    /**
+     * Finishes the current segment and maps a fresh one. The old mapping is released when it
+     * is collected; there is no portable way to unmap it sooner
+     */
+    private void roll() throws IOException {
+        if (segment != null) {
+            segment.putInt(0);
+            if (fsync != FsyncPolicy.NONE) force();
+        }
+        segmentIndex++;
+        final File file = segmentFile(directory, name, segmentIndex);
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(segmentBytes);
+            segment = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        } finally {
+            // the mapping stays valid after the file is closed
+            raf.close();
+        }
+        segment.putInt(MAGIC);
+        segment.putInt(VERSION);
+        segment.putLong(System.currentTimeMillis());
+        segment.putLong(System.nanoTime());
+        dirty = true;
+    }
+
+    static File segmentFile(File directory, String name, int index) {
+        return new File(directory, String.format("%s-%06d%s", name, index, SUFFIX));
+    }
+}
@@ -0,0 +1,197 @@
+package example;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads back the segments written by Journal, one record at a time
+ * <p>
+ * Usage is cursor style: call next() until it returns false, reading the current record with
+ * nanos(), address() and payload() in between. Run main() to dump a journal as text.
+ */
+public class JournalReader implements Closeable {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("arguments: <journal directory> [name prefix]");
+            return;
+        }
+        final JournalReader reader = new JournalReader(segments(new File(args[0]), args.length > 1 ? args[1] : ""));
+        final byte[] bytes = new byte[64 * 1024];
+        long records = 0;
+        try {
+            while (reader.next()) {
+                final ByteBuffer payload = reader.payload();
+                final int length = payload.remaining();
+                payload.get(bytes, 0, length);
+                System.out.println(reader.epochMillis() + " " + reader.address() + " " + new String(bytes, 0, length, "utf-8"));
+                records++;
+            }
+        } finally {
+            reader.close();
+        }
+        System.out.println(records + " record(s)");
+    }
+
+    /**
+     * @return the segments in directory whose name starts with prefix, oldest first per name
+     */
+    public static File[] segments(File directory, final String prefix) {
+        final File[] files = directory.listFiles(new FilenameFilter() {
+                public boolean accept(File dir, String name) {
+                    return name.startsWith(prefix) && name.endsWith(Journal.SUFFIX);
+                }
+            });
+        if (files == null) return new File[0];
+        // the index is zero padded, so name order is write order
+        Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * @return the segments in directory by journal name, eg: journal-0, journal-1 or capture,
+     *         names in order and each journal's segments oldest first
+     */
+    public static Map<String, File[]> journals(File directory) {
+        final Map<String, List<File>> byName = new LinkedHashMap<String, List<File>>();
+        for (File segment : segments(directory, "")) {
+            // strip the -000000.log segment index
+            final String name = segment.getName().substring(0, segment.getName().lastIndexOf('-'));
+            if (!byName.containsKey(name)) byName.put(name, new ArrayList<File>());
+            byName.get(name).add(segment);
+        }
+        final Map<String, File[]> journals = new LinkedHashMap<String, File[]>();
+        for (Map.Entry<String, List<File>> journal : byName.entrySet()) {
+            journals.put(journal.getKey(), journal.getValue().toArray(new File[journal.getValue().size()]));
+        }
+        return journals;
+    }
+
+    private final File[] files;
+    private int fileIndex = -1;
+    private MappedByteBuffer segment;
+    private long segmentEpochMillis;
+    private long segmentNanos;
+
+    private long nanos;
+    private final byte[] ip4 = new byte[4];
+    private final byte[] ip6 = new byte[16];
+    private byte[] ip;
+    private int port;
+    private final ByteBuffer payload = ByteBuffer.allocate(64 * 1024);
+
+    public JournalReader(File[] files) {
+        this.files = files.clone();
+    }
+
+    /**
+     * Moves to the next record, opening the next segment when this one runs out
+     *
+     * @return false once every segment has been read
+     */
+    public boolean next() throws IOException {
+        while (true) {
+            if (segment != null && segment.remaining() >= 4) {
+                final int recordLength = segment.getInt();
+                if (recordLength > segment.remaining() + 4) {
+                    throw new IOException("corrupt record length " + recordLength + " in " + files[fileIndex]
+                                          + " at " + (segment.position() - 4));
+                }
+                if (recordLength > 0) {
+                    read(recordLength);
+                    return true;
+                }
+            }
+            if (!open(fileIndex + 1)) return false;
+        }
+    }
+
+    private void read(int recordLength) throws IOException {
+        nanos = segment.getLong();
+        port = segment.getShort() & 0xffff;
+        final int addressLength = segment.get();
+        ip = addressLength == 4 ? ip4 : ip6;
+        if (ip.length != addressLength) {
+            throw new IOException("corrupt record in " + files[fileIndex] + " at " + segment.position());
+        }
+        segment.get(ip);
+        final int length = recordLength - Journal.RECORD_HEADER_SIZE - addressLength;
+        // narrow the segment to the payload for a bulk copy
+        final int limit = segment.limit();
+        segment.limit(segment.position() + length);
+        payload.clear();
+        payload.put(segment);
+        payload.flip();
+        segment.limit(limit);
+    }
+
+    private boolean open(int index) throws IOException {
+        segment = null;
+        fileIndex = index;
+        if (index >= files.length) return false;
+        final RandomAccessFile raf = new RandomAccessFile(files[index], "r");
+        try {
+            segment = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        if (segment.remaining() < Journal.HEADER_SIZE
+            || segment.getInt() != Journal.MAGIC || segment.getInt() != Journal.VERSION) {
+            throw new IOException("not a journal segment: " + files[index]);
+        }
+        segmentEpochMillis = segment.getLong();
+        segmentNanos = segment.getLong();
+        return true;
+    }
+
+    /**
+     * @return System.nanoTime() when the current record was received; only comparable with
+     *         records written by the same process
+     */
+    public long nanos() {
+        return nanos;
+    }
+
+    /**
+     * @return wall clock time the current record was received, derived from the segment header
+     */
+    public long epochMillis() {
+        return segmentEpochMillis + (nanos - segmentNanos) / 1000000;
+    }
+
+    /**
+     * @return wall clock time the current record was received in nanoseconds; only as accurate
+     *         as the millisecond clock at segment open, but nanosecond precise between records
+     *         of a segment, and comparable across processes
+     */
+    public long epochNanos() {
+        return segmentEpochMillis * 1000000 + (nanos - segmentNanos);
+    }
+
+    /**
+     * @return the sender of the current record; a new object on every call
+     */
+    public InetSocketAddress address() throws UnknownHostException {
+        return new InetSocketAddress(InetAddress.getByAddress(ip), port);
+    }
+
+    /**
+     * @return the payload of the current record, position 0 and limit its length; reused by
+     *         the next call to next()
+     */
+    public ByteBuffer payload() {
+        return payload;
+    }
+
+    public void close() {
+        segment = null;
+        fileIndex = files.length;
+    }
+}
@@ -0,0 +1,257 @@
+package example;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramLogWriter;
+import org.HdrHistogram.Recorder;
+
+/**
+ * Open loop UDP load generator for BioServer, ThreadPoolServer and DisruptorServer
+ * <p>
+ * Each connection has a sender that fires requests on a fixed schedule, whether or not replies
+ * have come back, and a separate receiver. Every request carries its intended and actual send
+ * times, and the server hands them back as it only upper-cases the payload. Latency measured
+ * from the intended send time is free of coordinated omission: a stalled server shows up as
+ * queueing delay on all the requests scheduled behind the stall. Latency from the actual send
+ * time is what a closed loop client would have reported, and is recorded alongside for contrast.
+ * <p>
+ * Interval histograms for both go to an HdrHistogram log, tagged "corrected" and "uncorrected",
+ * so runs against the different servers can be compared with HistogramLogProcessor
+ */
+public class LoadGenerator {
+
+    // 16 upper-case hex digits each for the intended and actual send time; the upper-case
+    // transform leaves these alone
+    private static final int HEADER_SIZE = 32;
+    private static final long HIGHEST_TRACKABLE_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes();
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("arguments: <hostname> [--port 9999] [--rate <requests/sec>] [--connections <n>]"
+                               + " [--payload <bytes>] [--warmup <secs>] [--seconds <secs>] [--log <file.hlog>]");
+            return;
+        }
+        final LoadGenerator g = new LoadGenerator(args[0]);
+        for (int i = 1; i < args.length; i += 2) {
+            if (i + 1 >= args.length) throw new IllegalArgumentException("missing value for " + args[i]);
+            final String value = args[i + 1];
+            if ("--port".equals(args[i])) g.port = Integer.parseInt(value);
+            else if ("--rate".equals(args[i])) g.rate = Integer.parseInt(value);
+            else if ("--connections".equals(args[i])) g.connections = Integer.parseInt(value);
+            else if ("--payload".equals(args[i])) g.payloadSize = Integer.parseInt(value);
+            else if ("--warmup".equals(args[i])) g.warmupSeconds = Integer.parseInt(value);
+            else if ("--seconds".equals(args[i])) g.seconds = Integer.parseInt(value);
+            else if ("--log".equals(args[i])) g.logFile = value;
+            else throw new IllegalArgumentException("unknown option " + args[i]);
+        }
+        g.run();
+    }
+
+    final String host;
+    int port = 9999;
+    int rate = 10000;
+    int connections = 1;
+    int payloadSize = 64;
+    int warmupSeconds = 5;
+    int seconds = 30;
+    String logFile = "latency.hlog";
+
+    private final Recorder corrected = new Recorder(HIGHEST_TRACKABLE_NANOS, 3);
+    private final Recorder uncorrected = new Recorder(HIGHEST_TRACKABLE_NANOS, 3);
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    private volatile boolean sending;
+
+    public LoadGenerator(String host) {
+        this.host = host;
+    }
+
+    public void run() throws Exception {
+        if (payloadSize < HEADER_SIZE) {
+            throw new IllegalArgumentException("payload must be at least " + HEADER_SIZE + " bytes");
+        }
+        if (rate < connections) {
+            throw new IllegalArgumentException("rate must be at least one request/sec per connection");
+        }
+        final InetSocketAddress target = new InetSocketAddress(host, port);
+        final long intervalNanos = TimeUnit.SECONDS.toNanos(1) * connections / rate;
+        System.out.println("sending " + rate + " req/s of " + payloadSize + " bytes to " + target
+                           + " over " + connections + " connection(s), logging to " + logFile);
+
+        final DatagramChannel[] channels = new DatagramChannel[connections];
+        final Thread[] threads = new Thread[2 * connections];
+        final long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        sending = true;
+        for (int i = 0; i < connections; i++) {
+            // not connected: the servers reply from a different socket to the one we sent to
+            channels[i] = DatagramChannel.open();
+            channels[i].bind(null);
+            // stagger the connections so the aggregate schedule is evenly spaced
+            final long offset = intervalNanos * i / connections;
+            threads[2 * i] = new Thread(new Sender(channels[i], target, start + offset, intervalNanos), "sender-" + i);
+            threads[2 * i + 1] = new Thread(new Receiver(channels[i]), "receiver-" + i);
+        }
+        for (Thread t : threads) t.start();
+
+        final HistogramLogWriter log = new HistogramLogWriter(logFile);
+        try {
+            record(log);
+        } finally {
+            log.close();
+        }
+
+        // let the stragglers arrive, then stop the receivers
+        sending = false;
+        Thread.sleep(1000);
+        for (DatagramChannel channel : channels) channel.close();
+        for (Thread t : threads) t.join();
+    }
+
+    /**
+     * Collects one interval histogram per second; warmup intervals are dropped
+     */
+    private void record(HistogramLogWriter log) throws InterruptedException {
+        final long logStart = System.currentTimeMillis();
+        log.outputLogFormatVersion();
+        log.outputStartTime(logStart);
+        log.setBaseTime(logStart);
+        log.outputComment("target " + host + ":" + port + " rate " + rate + " connections " + connections
+                          + " payload " + payloadSize);
+        log.outputLegend();
+
+        final Histogram correctedTotal = new Histogram(HIGHEST_TRACKABLE_NANOS, 3);
+        final Histogram uncorrectedTotal = new Histogram(HIGHEST_TRACKABLE_NANOS, 3);
+        Histogram correctedInterval = null;
+        Histogram uncorrectedInterval = null;
+        for (int s = 0; s < warmupSeconds + seconds; s++) {
+            Thread.sleep(1000);
+            correctedInterval = corrected.getIntervalHistogram(correctedInterval);
+            uncorrectedInterval = uncorrected.getIntervalHistogram(uncorrectedInterval);
+            if (s < warmupSeconds) continue;
+            correctedInterval.setTag("corrected");
+            uncorrectedInterval.setTag("uncorrected");
+            log.outputIntervalHistogram(correctedInterval);
+            log.outputIntervalHistogram(uncorrectedInterval);
+            correctedTotal.add(correctedInterval);
+            uncorrectedTotal.add(uncorrectedInterval);
+        }
+
+        System.out.printf("sent %d, received %d%n", sent.get(), received.get());
+        print("corrected  ", correctedTotal);
+        print("uncorrected", uncorrectedTotal);
+    }
+
+    private static void print(String label, Histogram h) {
+        System.out.printf("%s latency 1/50/99/99.9/99.99/max percentile %.1f/%.1f/%.1f/%.1f/%.1f/%.1f us%n",
+                          label,
+                          h.getValueAtPercentile(1) / 1000d,
+                          h.getValueAtPercentile(50) / 1000d,
+                          h.getValueAtPercentile(99) / 1000d,
+                          h.getValueAtPercentile(99.9) / 1000d,
+                          h.getValueAtPercentile(99.99) / 1000d,
+                          h.getMaxValue() / 1000d);
+    }
+
+    /**
+     * Sends on a fixed schedule; if it falls behind it sends back-to-back until it catches up,
+     * keeping the original intended times so the delay is charged to the latency
+     */
+    private class Sender implements Runnable {
+        private final DatagramChannel channel;
+        private final SocketAddress target;
+        private final long start;
+        private final long intervalNanos;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(payloadSize);
+
+        Sender(DatagramChannel channel, SocketAddress target, long start, long intervalNanos) {
+            this.channel = channel;
+            this.target = target;
+            this.start = start;
+            this.intervalNanos = intervalNanos;
+            for (int i = HEADER_SIZE; i < payloadSize; i++) {
+                buffer.put(i, (byte) ('a' + (i % 26)));
+            }
+        }
+
+        public void run() {
+            try {
+                for (long n = 0; sending; n++) {
+                    final long intended = start + n * intervalNanos;
+                    waitUntil(intended);
+                    putHex(buffer, 0, intended);
+                    putHex(buffer, 16, System.nanoTime());
+                    buffer.clear();
+                    channel.send(buffer, target);
+                    sent.incrementAndGet();
+                }
+            } catch (ClosedChannelException e) {
+                // finished
+            } catch (IOException e) {
+                System.out.println(e);
+                e.printStackTrace();
+            }
+        }
+
+        private void waitUntil(long deadline) {
+            long remaining;
+            while ((remaining = deadline - System.nanoTime()) > 0) {
+                if (remaining > 100000) {
+                    LockSupport.parkNanos(remaining - 50000);
+                } else {
+                    Thread.yield();
+                }
+            }
+        }
+    }
+
+    private class Receiver implements Runnable {
+        private final DatagramChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+
+        Receiver(DatagramChannel channel) {
+            this.channel = channel;
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    buffer.clear();
+                    channel.receive(buffer);
+                    final long now = System.nanoTime();
+                    if (buffer.position() < HEADER_SIZE) continue;
+                    corrected.recordValue(Math.min(now - getHex(buffer, 0), HIGHEST_TRACKABLE_NANOS));
+                    uncorrected.recordValue(Math.min(now - getHex(buffer, 16), HIGHEST_TRACKABLE_NANOS));
+                    received.incrementAndGet();
+                }
+            } catch (ClosedChannelException e) {
+                // finished
+            } catch (IOException e) {
+                System.out.println(e);
+                e.printStackTrace();
+            }
+        }
+    }
+
+    static void putHex(ByteBuffer buffer, int offset, long value) {
+        for (int i = 15; i >= 0; i--) {
+            buffer.put(offset + i, HEX[(int) (value & 0xF)]);
+            value >>>= 4;
+        }
+    }
+
+    static long getHex(ByteBuffer buffer, int offset) {
+        long value = 0;
+        for (int i = 0; i < 16; i++) {
+            final int c = buffer.get(offset + i);
+            value = (value << 4) | (c <= '9' ? c - '0' : c - 'A' + 10);
+        }
+        return value;
+    }
+}
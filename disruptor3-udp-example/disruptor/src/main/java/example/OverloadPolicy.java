@@ -0,0 +1,23 @@
+package example;
+
+/**
+ * What a bounded server does with a new packet when its work queue is full
+ */
+public enum OverloadPolicy {
+
+    /** Drop the packet just received; the queued ones are older and closer to done */
+    DROP_NEWEST,
+
+    /** Drop the oldest queued packet to make room; its client has probably given up already */
+    DROP_OLDEST,
+
+    /**
+     * Stop receiving until a worker frees a slot, pushing back onto the socket receive buffer;
+     * the kernel drops once that fills, which shows up in netstat rather than in our counters
+     */
+    BLOCK;
+
+    public static OverloadPolicy fromName(String name) {
+        return valueOf(name.trim().toUpperCase().replace('-', '_'));
+    }
+}
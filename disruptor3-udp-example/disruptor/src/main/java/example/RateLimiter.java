@@ -0,0 +1,127 @@
+package example;
+
+import java.net.SocketAddress;
+import java.util.concurrent.atomic.AtomicLongArray;
+import com.lmax.disruptor.Sequence;
+
+/**
+ * A token bucket per client, in a fixed table keyed on the long peer keys from AddressCache
+ * <p>
+ * Each bucket is a single long, the time the bucket would next be full, which makes it the
+ * generic cell rate algorithm: a packet is let through when that time is no more than burst
+ * intervals ahead of now, and pushes it one interval further on. That is the same decision as
+ * refilling and taking a token, with nothing to refill.
+ * <p>
+ * The table is open addressed with probes bounded to a short window, and nothing is ever
+ * deleted, so a lookup never has to step over holes. A new client that finds the window full
+ * takes over the slot of a client whose bucket has filled up again, which is the same as not
+ * being there; if every one is busy it shares an overflow bucket, so a flood of new sources
+ * can't grow the table or push out clients that are being limited.
+ * <p>
+ * allow() must be called from one thread. Keys and drop counts are published with ordered
+ * writes so other threads can read the per-client stats without locking
+ */
+class RateLimiter {
+
+    private static final int PROBES = 16;
+
+    private final int mask;
+    private final long intervalNanos;
+    private final long toleranceNanos;
+    private final AtomicLongArray keys;
+    private final long[] full;
+    private final AtomicLongArray drops;
+    private final SocketAddress[] addresses;
+    // the last slot, never handed out by probing
+    private final int overflow;
+
+    // padded, single writer
+    final Sequence limited = new Sequence(0);
+
+    /**
+     * @param perSecond packets per second each client may send on average
+     * @param burst packets a client may send back to back after being quiet
+     * @param clients slots in the table, a power of two
+     */
+    RateLimiter(long perSecond, int burst, int clients) {
+        if (perSecond < 1 || burst < 1) {
+            throw new IllegalArgumentException("rate and burst must be positive: " + perSecond + ", " + burst);
+        }
+        if (clients < 2 || Integer.bitCount(clients) != 1) {
+            throw new IllegalArgumentException("rate limiter clients must be a power of two: " + clients);
+        }
+        this.mask = clients - 1;
+        this.overflow = clients - 1;
+        this.intervalNanos = Math.max(1, 1000000000L / perSecond);
+        this.toleranceNanos = intervalNanos * (burst - 1);
+        this.keys = new AtomicLongArray(clients);
+        this.full = new long[clients];
+        this.drops = new AtomicLongArray(clients);
+        this.addresses = new SocketAddress[clients];
+    }
+
+    /**
+     * Takes a token from the client's bucket, or counts a drop against it
+     *
+     * @param key the client's AddressCache key, non-zero
+     * @param address only kept for reporting, when the client first gets a slot
+     * @return true if the packet is within the client's rate
+     */
+    boolean allow(long key, SocketAddress address, long now) {
+        final int slot = slot(key, address, now);
+        final long next = Math.max(full[slot], now);
+        if (next - now > toleranceNanos) {
+            drops.lazySet(slot, drops.get(slot) + 1);
+            limited.set(limited.get() + 1);
+            return false;
+        }
+        full[slot] = next + intervalNanos;
+        return true;
+    }
+
+    private int slot(long key, SocketAddress address, long now) {
+        final int home = mix(key) & mask;
+        int idle = -1;
+        for (int i = 0; i < PROBES; i++) {
+            final int slot = (home + i) & mask;
+            if (slot == overflow) continue;
+            final long k = keys.get(slot);
+            if (k == key) return slot;
+            if (k == 0) return claim(slot, key, address);
+            if (idle < 0 && full[slot] <= now) idle = slot;
+        }
+        return idle >= 0 ? claim(idle, key, address) : overflow;
+    }
+
+    private int claim(int slot, long key, SocketAddress address) {
+        full[slot] = 0;
+        addresses[slot] = address;
+        drops.lazySet(slot, 0);
+        keys.lazySet(slot, key);
+        return slot;
+    }
+
+    private static int mix(long key) {
+        final long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ h >>> 32);
+    }
+
+    // per-client stats, for slots 0 to slots() - 1; the last is the shared overflow bucket
+
+    int slots() {
+        return mask + 1;
+    }
+
+    /** @return the client's key, or 0 if the slot is unused or is the overflow bucket */
+    long key(int slot) {
+        return slot == overflow ? 0 : keys.get(slot);
+    }
+
+    SocketAddress address(int slot) {
+        return addresses[slot];
+    }
+
+    long drops(int slot) {
+        return drops.get(slot);
+    }
+}
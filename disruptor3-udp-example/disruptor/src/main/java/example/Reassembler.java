@@ -0,0 +1,216 @@
+package example;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import com.lmax.disruptor.Sequence;
+
+/**
+ * Puts fragmented messages (see Framing) back together in a slab allocated up front
+ * <p>
+ * The slab has a fixed number of slots of MAX_MESSAGE bytes each. A slot is claimed by the
+ * first fragment of a message to arrive, found again by sender address and request id, and
+ * filled in place as the rest arrive in any order. A message can only live within a short
+ * window of slots from where its sender and request id hash to, so finding it costs the same
+ * however many slots there are; a message whose window is full is rejected, like one that
+ * finds the whole slab full. Once every fragment is in, the slot is
+ * handed to the consumer, which reads the message and calls release(). Partial messages older
+ * than the timeout are evicted by evictExpired().
+ * <p>
+ * accept() and evictExpired() must be called from one thread; message(), address(),
+ * requestId() and release() from the consumer that was handed the slot
+ */
+class Reassembler {
+
+    /** accept() result: fragment stored, message not complete yet */
+    static final int INCOMPLETE = -1;
+    /** accept() result: fragment malformed, duplicated or no free slot; nothing to do */
+    static final int REJECTED = -2;
+
+    private static final int FREE = 0;
+    private static final int FILLING = 1;
+    private static final int COMPLETE = 2;
+
+    static final int PROBES = 16;
+
+    private final int mask;
+    private final int probes;
+    private final long timeoutNanos;
+    private final AtomicIntegerArray state;
+    private final ByteBuffer[] messages;
+    private final SocketAddress[] addresses;
+    private final int[] requestIds;
+    private final int[] counts;
+    private final int[] received;
+    private final long[] receivedLow;
+    private final long[] receivedHigh;
+    private final long[] started;
+
+    // padded, single writer
+    final Sequence completed = new Sequence(0);
+    final Sequence evicted = new Sequence(0);
+    final Sequence rejected = new Sequence(0);
+
+    /**
+     * @param slots number of messages that can be in progress at once, a power of two
+     */
+    Reassembler(int slots, long timeoutNanos) {
+        if (Integer.bitCount(slots) != 1) {
+            throw new IllegalArgumentException("reassembly slots must be a power of two: " + slots);
+        }
+        this.mask = slots - 1;
+        this.probes = Math.min(PROBES, slots);
+        this.timeoutNanos = timeoutNanos;
+        this.state = new AtomicIntegerArray(slots);
+        this.messages = new ByteBuffer[slots];
+        this.addresses = new SocketAddress[slots];
+        this.requestIds = new int[slots];
+        this.counts = new int[slots];
+        this.received = new int[slots];
+        this.receivedLow = new long[slots];
+        this.receivedHigh = new long[slots];
+        this.started = new long[slots];
+        final ByteBuffer slab = ByteBuffer.allocate(slots * Framing.MAX_MESSAGE);
+        for (int i = 0; i < slots; i++) {
+            slab.limit((i + 1) * Framing.MAX_MESSAGE).position(i * Framing.MAX_MESSAGE);
+            messages[i] = slab.slice();
+        }
+    }
+
+    /**
+     * Stores one fragment; datagram is flipped, starting with the Framing header, and is only
+     * read by absolute index
+     *
+     * @return the slot holding the now complete message, INCOMPLETE or REJECTED
+     */
+    int accept(SocketAddress address, ByteBuffer datagram, long now) {
+        if (datagram.limit() < Framing.HEADER_SIZE) return reject();
+        final int requestId = Framing.requestId(datagram);
+        final int index = Framing.fragmentIndex(datagram);
+        final int count = Framing.fragmentCount(datagram);
+        final int length = datagram.limit() - Framing.HEADER_SIZE;
+        // every fragment but the last is full, so the offset follows from the index
+        if (count < 1 || count > Framing.MAX_FRAGMENTS || index >= count
+            || (index < count - 1 ? length != Framing.FRAGMENT_PAYLOAD : length > Framing.FRAGMENT_PAYLOAD)) {
+            return reject();
+        }
+
+        final int slot = find(address, requestId, count, now);
+        if (slot < 0) return reject();
+
+        final long bit = 1L << (index & 63);
+        if (index < 64) {
+            if ((receivedLow[slot] & bit) != 0) return reject();
+            receivedLow[slot] |= bit;
+        } else {
+            if ((receivedHigh[slot] & bit) != 0) return reject();
+            receivedHigh[slot] |= bit;
+        }
+        copy(datagram, messages[slot], index * Framing.FRAGMENT_PAYLOAD, length);
+        if (index == count - 1) {
+            messages[slot].limit(index * Framing.FRAGMENT_PAYLOAD + length);
+        }
+
+        if (++received[slot] < count) return INCOMPLETE;
+        messages[slot].position(0);
+        completed.set(completed.get() + 1);
+        // publishes the message to whoever reads the slot number from the ring
+        state.lazySet(slot, COMPLETE);
+        return slot;
+    }
+
+    /**
+     * Looks for the slot already collecting this message in the probe window from its home
+     * slot; failing that claims the first free slot in the window. The whole window is always
+     * looked at, so slots freed in the middle of it don't hide the ones after
+     */
+    private int find(SocketAddress address, int requestId, int count, long now) {
+        final int start = home(address, requestId);
+        int free = -1;
+        for (int i = 0; i < probes; i++) {
+            final int slot = (start + i) & mask;
+            final int s = state.get(slot);
+            if (s == FILLING && requestIds[slot] == requestId && addresses[slot].equals(address)) {
+                return counts[slot] == count ? slot : -1;
+            }
+            if (s == FREE && free < 0) free = slot;
+        }
+        if (free >= 0) {
+            addresses[free] = address;
+            requestIds[free] = requestId;
+            counts[free] = count;
+            received[free] = 0;
+            receivedLow[free] = 0;
+            receivedHigh[free] = 0;
+            started[free] = now;
+            messages[free].clear();
+            state.set(free, FILLING);
+        }
+        return free;
+    }
+
+    /**
+     * @return the first slot of the message's probe window
+     */
+    int home(SocketAddress address, int requestId) {
+        final int h = (requestId * 31 + address.hashCode()) * 0x9E3779B9;
+        return (h ^ h >>> 16) & mask;
+    }
+
+    private static void copy(ByteBuffer datagram, ByteBuffer message, int offset, int length) {
+        if (datagram.hasArray()) {
+            message.position(offset);
+            message.put(datagram.array(), datagram.arrayOffset() + Framing.HEADER_SIZE, length);
+        } else {
+            for (int i = 0; i < length; i++) {
+                message.put(offset + i, datagram.get(Framing.HEADER_SIZE + i));
+            }
+        }
+    }
+
+    private int reject() {
+        rejected.set(rejected.get() + 1);
+        return REJECTED;
+    }
+
+    /**
+     * Frees partial messages that have waited longer than the timeout
+     *
+     * @return number evicted
+     */
+    int evictExpired(long now) {
+        int count = 0;
+        for (int slot = 0; slot <= mask; slot++) {
+            if (state.get(slot) == FILLING && now - started[slot] > timeoutNanos) {
+                addresses[slot] = null;
+                state.set(slot, FREE);
+                count++;
+            }
+        }
+        if (count > 0) evicted.set(evicted.get() + count);
+        return count;
+    }
+
+    /**
+     * @return the completed message in slot, position 0 and limit its length
+     */
+    ByteBuffer message(int slot) {
+        return messages[slot];
+    }
+
+    SocketAddress address(int slot) {
+        return addresses[slot];
+    }
+
+    int requestId(int slot) {
+        return requestIds[slot];
+    }
+
+    /**
+     * Hands the slot back once the consumer is done with the message
+     */
+    void release(int slot) {
+        addresses[slot] = null;
+        state.lazySet(slot, FREE);
+    }
+}
@@ -0,0 +1,33 @@
+package example;
+
+/**
+ * Occupancy of one DisruptorServer shard's rings, published over JMX
+ * <p>
+ * Lag is how many published events a consumer has still to process; with a full ring the
+ * remaining capacity is 0 and the receiver is about to stall
+ */
+public interface RingMonitorMBean {
+
+    long getReceived();
+
+    /** Packets dropped by the receiver because the input ring was full, with shedding on */
+    long getShed();
+
+    /** Peers held in the receiver's address cache; -1 when the cache is off */
+    long getPeers();
+
+    /** Packets dropped by the rate limiter; -1 when rate limiting is off */
+    long getLimited();
+
+    long getInRemainingCapacity();
+
+    long getOutRemainingCapacity();
+
+    /** Largest lag across the business logic workers */
+    long getBusinessLogicLag();
+
+    /** -1 when journaling is off */
+    long getJournalLag();
+
+    long getSendLag();
+}
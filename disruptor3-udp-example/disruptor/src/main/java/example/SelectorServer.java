@@ -0,0 +1,260 @@
+package example;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import com.lmax.disruptor.*;
+import com.lmax.disruptor.dsl.Disruptor;
+import com.lmax.disruptor.dsl.ProducerType;
+
+/**
+ * Non-blocking variant: a few event loops serve many ports
+ * <p>
+ * Each port gets a non-blocking channel, and the channels are dealt out round-robin across a
+ * small fixed set of event loop threads, each with its own Selector. When a channel is readable
+ * its loop reads in a burst, straight into claimed ring slots, until receive() returns null or
+ * the burst limit is hit. The limit stops one busy port starving the others on the same loop;
+ * the selector is level triggered, so whatever is left is picked up on the next select.
+ * <p>
+ * Every loop owns one ring, and a single handler on that ring runs the transform and replies
+ * from the channel the request came in on. That channel belongs to the loop, so there is never
+ * more than one thread sending on it.
+ */
+public class SelectorServer implements UdpServer {
+
+    public static void main(String[] args) throws Exception {
+        final SelectorServer s = new SelectorServer(9999,
+                                                    Integer.getInteger("selector.ports", 1),
+                                                    Integer.getInteger("selector.loops", 1));
+        s.setWaitProfile(WaitProfile.fromName(System.getProperty("selector.profile", "efficiency")));
+        s.start();
+        System.console().readLine("SelectorServer running on ports 9999-" + (9999 + s.portCount - 1) + ". Press enter to exit.");
+        System.out.println("failed to send " + s.sendFailures() + " replies");
+        s.stop();
+        System.exit(0);
+    }
+
+    private static final int RING_SIZE = 1024;
+    private static final int BYTE_ARRAY_SIZE = 1024;
+    // datagrams read from one channel before moving on to the next ready channel
+    private static final int BURST = 64;
+
+    private final int port;
+    private final int portCount;
+    private final int loopCount;
+    private WaitProfile profile = WaitProfile.EFFICIENCY;
+    private ByteTransform transform = new UpperCaseTransform();
+    private final AtomicLong sendFailures = new AtomicLong();
+
+    private ExecutorService executor;
+    private DatagramChannel[] channels;
+    private EventLoop[] loops;
+    private Disruptor<DatagramEvent>[] disruptors;
+    private Thread[] t;
+
+    public SelectorServer(int port) {
+        this(port, 1, 1);
+    }
+
+    /**
+     * @param portCount number of consecutive ports to serve, starting at port
+     * @param loopCount number of event loop threads; more than portCount leaves some idle
+     */
+    public SelectorServer(int port, int portCount, int loopCount) {
+        if (portCount < 1 || loopCount < 1) {
+            throw new IllegalArgumentException("need at least one port and one event loop");
+        }
+        this.port = port;
+        this.portCount = portCount;
+        this.loopCount = loopCount;
+    }
+
+    /**
+     * Picks the wait strategy for the reply handlers; call before start()
+     */
+    public void setWaitProfile(WaitProfile profile) {
+        this.profile = profile;
+    }
+
+    /**
+     * Sets the transform applied to each packet; call before start()
+     */
+    public void setTransform(ByteTransform transform) {
+        this.transform = transform;
+    }
+
+    /**
+     * @return replies dropped because the socket send buffer was full
+     */
+    public long sendFailures() {
+        return sendFailures.get();
+    }
+
+    public void start() throws Exception {
+        executor = Executors.newFixedThreadPool(loopCount);
+        channels = new DatagramChannel[portCount];
+        loops = new EventLoop[loopCount];
+        disruptors = DisruptorServer.newDisruptors(loopCount);
+        t = new Thread[loopCount];
+
+        for (int i = 0; i < loopCount; i++) {
+            disruptors[i] = new Disruptor<DatagramEvent>(
+                DatagramEvent.EVENT_FACTORY, RING_SIZE, executor, ProducerType.SINGLE, profile.newWaitStrategy());
+            disruptors[i].handleEventsWith(DisruptorServer.handlers(new ReplyHandler(i, transform)));
+            disruptors[i].start();
+            loops[i] = new EventLoop(disruptors[i].getRingBuffer());
+        }
+
+        for (int p = 0; p < portCount; p++) {
+            channels[p] = DatagramChannel.open();
+            channels[p].socket().bind(new InetSocketAddress(port + p));
+            channels[p].configureBlocking(false);
+            // registering blocks while the selector is selecting, so do it before the loops run
+            channels[p].register(loops[p % loopCount].selector, SelectionKey.OP_READ);
+        }
+
+        for (int i = 0; i < loopCount; i++) {
+            t[i] = new Thread(loops[i], "selector-" + i);
+            t[i].start();
+        }
+        System.out.println("listening on " + portCount + " port(s) with " + loopCount + " event loop(s), "
+                           + profile + " profile.");
+    }
+
+    public void stop() throws Exception {
+        // early exit
+        if (t == null) return;
+        for (int i = 0; i < loopCount; i++) {
+            loops[i].running = false;
+            loops[i].selector.wakeup();
+        }
+        for (int i = 0; i < loopCount; i++) {
+            t[i].join();
+        }
+        // let the handlers reply to everything already published, then stop them
+        for (int i = 0; i < loopCount; i++) {
+            disruptors[i].shutdown();
+        }
+        executor.shutdown();
+        for (int p = 0; p < portCount; p++) {
+            channels[p].close();
+        }
+        for (int i = 0; i < loopCount; i++) {
+            loops[i].selector.close();
+        }
+        t = null;
+        channels = null;
+    }
+
+    /**
+     * Selects, and reads every ready channel in bursts into the ring
+     * <p>
+     * The next slot is claimed before anything is known to be there, and kept across selects
+     * until a datagram lands in it. As the only publisher this is safe: the slot is simply not
+     * published until it holds something.
+     */
+    private class EventLoop implements Runnable {
+        final Selector selector;
+        final RingBuffer<DatagramEvent> ringBuffer;
+        volatile boolean running = true;
+
+        EventLoop(RingBuffer<DatagramEvent> ringBuffer) throws IOException {
+            this.selector = Selector.open();
+            this.ringBuffer = ringBuffer;
+        }
+
+        public void run() {
+            long sequence = ringBuffer.next();
+            DatagramEvent slot = ringBuffer.get(sequence);
+            try {
+                while (running) {
+                    selector.select();
+                    final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        final DatagramChannel channel = (DatagramChannel) keys.next().channel();
+                        keys.remove();
+                        for (int n = 0; n < BURST; n++) {
+                            slot.buffer.clear();
+                            final SocketAddress address = channel.receive(slot.buffer);
+                            if (address == null) break;
+                            slot.buffer.flip();
+                            slot.address = address;
+                            slot.channel = channel;
+                            ringBuffer.publish(sequence);
+                            sequence = ringBuffer.next();
+                            slot = ringBuffer.get(sequence);
+                        }
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                // stopping
+            } catch (IOException e) {
+                System.out.println(e);
+                e.printStackTrace();
+            } finally {
+                // hand back the claimed slot empty, so shutdown doesn't wait on it forever
+                slot.address = null;
+                ringBuffer.publish(sequence);
+            }
+        }
+    }
+
+    /**
+     * Runs the transform into a buffer of its own and replies on the channel the request came
+     * in on. The channel is non-blocking, so a full send buffer drops the reply rather than
+     * stalling the ring; those are counted
+     */
+    private class ReplyHandler implements EventHandler<DatagramEvent>, LifecycleAware {
+        private final int index;
+        private final ByteTransform transform;
+        private final ByteBuffer reply = ByteBuffer.allocateDirect(BYTE_ARRAY_SIZE);
+
+        ReplyHandler(int index, ByteTransform transform) {
+            this.index = index;
+            this.transform = transform;
+        }
+
+        public void onEvent(DatagramEvent event, long sequence, boolean endOfBatch) throws Exception {
+            if (event.address == null) return;
+            reply.clear();
+            transform.transform(event.buffer, reply);
+            reply.flip();
+            try {
+                if (event.channel.send(reply, event.address) == 0) {
+                    sendFailures.incrementAndGet();
+                }
+            } catch (ClosedChannelException e) {
+                // stopping
+            }
+        }
+
+        public void onStart() {
+            Thread.currentThread().setName("reply-" + index);
+        }
+
+        public void onShutdown() {
+        }
+    }
+
+    /**
+     * A received datagram, plus the channel to reply on; the buffer is kept flipped
+     */
+    private static class DatagramEvent {
+        ByteBuffer buffer;
+        SocketAddress address;
+        DatagramChannel channel;
+
+        static final EventFactory<DatagramEvent> EVENT_FACTORY = new EventFactory<DatagramEvent>() {
+            public DatagramEvent newInstance() {
+                final DatagramEvent e = new DatagramEvent();
+                e.buffer = ByteBuffer.allocateDirect(BYTE_ARRAY_SIZE);
+                e.buffer.flip();
+                return e;
+            }
+        };
+    }
+}
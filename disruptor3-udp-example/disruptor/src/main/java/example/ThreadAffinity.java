@@ -0,0 +1,60 @@
+package example;
+
+import java.io.*;
+
+/**
+ * Best effort cpu pinning for the calling thread
+ * <p>
+ * Java has no affinity API, so on linux we look up our native thread id through
+ * /proc/thread-self and hand it to taskset. Anywhere else, or if taskset is missing, the
+ * thread is left where the scheduler put it. Only meant to be called once, at thread start
+ */
+final class ThreadAffinity {
+
+    private ThreadAffinity() {
+    }
+
+    /**
+     * Parses a cpu list such as "2,3,6"
+     */
+    public static int[] parseCpus(String list) {
+        if (list == null || list.trim().isEmpty()) return new int[0];
+        final String[] parts = list.split(",");
+        final int[] cpus = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            cpus[i] = Integer.parseInt(parts[i].trim());
+        }
+        return cpus;
+    }
+
+    /**
+     * @return true if the calling thread is now pinned to cpu
+     */
+    public static boolean pin(int cpu) {
+        try {
+            // resolves to /proc/<pid>/task/<tid>
+            final String tid = new File("/proc/thread-self").getCanonicalFile().getName();
+            final Process p = new ProcessBuilder("taskset", "-p", "-c", Integer.toString(cpu), tid)
+                .redirectErrorStream(true)
+                .start();
+            drain(p.getInputStream());
+            return p.waitFor() == 0;
+        } catch (IOException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        final byte[] buf = new byte[256];
+        try {
+            while (in.read(buf) >= 0) {
+                // discard
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -4,7 +4,7 @@ import java.net.*;
 
 import java.util.concurrent.*;
 
-public class ThreadPoolServer {
+public class ThreadPoolServer implements UdpServer {
 
     private Thread t;
 
@@ -0,0 +1,267 @@
+package example;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * Captures real traffic into a journal and replays it against any of the servers
+ * <p>
+ * capture binds a port and journals every datagram it receives, with its receive time, in the
+ * same format DisruptorServer writes with -Ddisruptor.journal; it never replies. Point a real
+ * client at it, or just use the journal DisruptorServer wrote.
+ * <p>
+ * replay sends the journaled packets again, keeping their sizes and spacing, at 1x, Nx or as
+ * fast as possible. Journals from several shards are merged back into time order. Each
+ * original sender is mapped onto one of the replay connections, so a sender's packets keep
+ * their order. Latency is measured from when each packet should have been sent, like
+ * LoadGenerator, so a stalled server is charged for the packets queued behind the stall.
+ * <p>
+ * To match replies to requests the first 16 bytes of every payload are overwritten with a
+ * sequence number, as upper-case hex which the servers echo back unchanged; shorter payloads
+ * are padded up to 16 bytes.
+ */
+public class TrafficReplay {
+
+    private static final int TAG_SIZE = 16;
+    private static final long HIGHEST_TRACKABLE_NANOS = TimeUnit.MINUTES.toNanos(1);
+    // sends outstanding beyond this can't be matched and are counted as lost
+    private static final int IN_FLIGHT = 1 << 20;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || !("capture".equals(args[0]) || "replay".equals(args[0]))) {
+            System.out.println("arguments: capture [--port 9999] [--dir capture] [--seconds <secs>]");
+            System.out.println("       or: replay <hostname> [--port 9999] [--dir journal] [--speed <1, N or max>]"
+                               + " [--connections <n>] [--maxGapMillis 1000]");
+            return;
+        }
+        final boolean capture = "capture".equals(args[0]);
+        final TrafficReplay r = new TrafficReplay(capture ? null : args[1]);
+        for (int i = capture ? 1 : 2; i < args.length; i += 2) {
+            if (i + 1 >= args.length) throw new IllegalArgumentException("missing value for " + args[i]);
+            final String value = args[i + 1];
+            if ("--port".equals(args[i])) r.port = Integer.parseInt(value);
+            else if ("--dir".equals(args[i])) r.directory = new File(value);
+            else if ("--seconds".equals(args[i])) r.seconds = Integer.parseInt(value);
+            else if ("--speed".equals(args[i])) r.speed = "max".equals(value) ? 0 : Double.parseDouble(value);
+            else if ("--connections".equals(args[i])) r.connections = Integer.parseInt(value);
+            else if ("--maxGapMillis".equals(args[i])) r.maxGapNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(value));
+            else throw new IllegalArgumentException("unknown option " + args[i]);
+        }
+        if (capture) {
+            r.capture();
+        } else {
+            r.replay();
+        }
+    }
+
+    final String host;
+    int port = 9999;
+    File directory;
+    int seconds = 0;
+    // 0 means as fast as possible
+    double speed = 1;
+    int connections = 1;
+    long maxGapNanos = TimeUnit.SECONDS.toNanos(1);
+
+    private final Recorder latency = new Recorder(HIGHEST_TRACKABLE_NANOS, 3);
+    private final long[] intended = new long[IN_FLIGHT];
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong unmatched = new AtomicLong();
+
+    public TrafficReplay(String host) {
+        this.host = host;
+        this.directory = new File(host == null ? "capture" : "journal");
+    }
+
+    /**
+     * Journals everything arriving on the port until the time is up, or forever if seconds is 0
+     */
+    public void capture() throws IOException {
+        final DatagramChannel channel = DatagramChannel.open();
+        channel.socket().bind(new InetSocketAddress(port));
+        final Journal journal = new Journal(directory, "capture", 64 * 1024 * 1024, FsyncPolicy.NONE, 0);
+        final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        final long end = seconds > 0 ? System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds) : Long.MAX_VALUE;
+        System.out.println("capturing port " + port + " into " + directory);
+        long count = 0;
+        try {
+            // poll so the time limit is honoured even when nothing arrives
+            channel.configureBlocking(false);
+            while (System.nanoTime() < end) {
+                buffer.clear();
+                final SocketAddress address = channel.receive(buffer);
+                if (address == null) {
+                    LockSupport.parkNanos(50000);
+                    continue;
+                }
+                journal.append(System.nanoTime(), address, buffer.array(), buffer.position());
+                if (++count % 1024 == 0) journal.endOfBatch();
+            }
+        } finally {
+            journal.close();
+            channel.close();
+            System.out.println("captured " + count + " packet(s)");
+        }
+    }
+
+    public void replay() throws Exception {
+        final JournalReader[] readers = openReaders();
+        if (readers.length == 0) {
+            throw new FileNotFoundException("no journal segments in " + directory);
+        }
+        final InetSocketAddress target = new InetSocketAddress(host, port);
+        System.out.println("replaying " + directory + " (" + readers.length + " journal(s)) to " + target
+                           + " at " + (speed == 0 ? "max" : speed + "x") + " speed over " + connections + " connection(s)");
+
+        final DatagramChannel[] channels = new DatagramChannel[connections];
+        final Thread[] threads = new Thread[connections];
+        for (int i = 0; i < connections; i++) {
+            // not connected: the servers reply from a different socket to the one we sent to
+            channels[i] = DatagramChannel.open();
+            channels[i].bind(null);
+            threads[i] = new Thread(new Receiver(channels[i]), "receiver-" + i);
+            threads[i].start();
+        }
+
+        final long start = System.nanoTime();
+        try {
+            send(readers.clone(), channels, target);
+        } finally {
+            for (JournalReader reader : readers) reader.close();
+        }
+        final long elapsed = System.nanoTime() - start;
+
+        // let the stragglers arrive, then stop the receivers
+        Thread.sleep(1000);
+        for (DatagramChannel channel : channels) channel.close();
+        for (Thread t : threads) t.join();
+
+        final Histogram h = latency.getIntervalHistogram();
+        System.out.printf("sent %d in %.1f s (%.0f/s), received %d, lost %d, unmatched %d%n",
+                          sent.get(), elapsed / 1e9, sent.get() * 1e9 / elapsed, received.get(),
+                          sent.get() - received.get(), unmatched.get());
+        System.out.printf("latency 1/50/99/99.9/99.99/max percentile %.1f/%.1f/%.1f/%.1f/%.1f/%.1f us%n",
+                          h.getValueAtPercentile(1) / 1000d,
+                          h.getValueAtPercentile(50) / 1000d,
+                          h.getValueAtPercentile(99) / 1000d,
+                          h.getValueAtPercentile(99.9) / 1000d,
+                          h.getValueAtPercentile(99.99) / 1000d,
+                          h.getMaxValue() / 1000d);
+    }
+
+    /**
+     * One reader per journal name in the directory, eg: journal-0, journal-1 and capture, each
+     * positioned on its first record; empty journals are left out
+     */
+    private JournalReader[] openReaders() throws IOException {
+        final List<JournalReader> readers = new ArrayList<JournalReader>();
+        for (File[] segments : JournalReader.journals(directory).values()) {
+            final JournalReader reader = new JournalReader(segments);
+            if (reader.next()) readers.add(reader);
+        }
+        return readers.toArray(new JournalReader[readers.size()]);
+    }
+
+    /**
+     * Merges the journals by receive time and sends each packet on its schedule; when it falls
+     * behind it sends back-to-back, keeping the original schedule so the delay is charged
+     */
+    private void send(JournalReader[] readers, DatagramChannel[] channels, SocketAddress target) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        long previous = -1;
+        long offset = 0;
+        final long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        int remaining = readers.length;
+        while (remaining > 0) {
+            // the next record across all journals; there are only ever a handful of shards
+            JournalReader reader = null;
+            for (JournalReader r : readers) {
+                if (r != null && (reader == null || r.epochNanos() < reader.epochNanos())) reader = r;
+            }
+
+            final long recorded = reader.epochNanos();
+            if (previous >= 0) {
+                offset += Math.min(recorded - previous, maxGapNanos);
+            }
+            previous = recorded;
+            final long due = speed == 0 ? System.nanoTime() : start + (long) (offset / speed);
+            waitUntil(due);
+
+            final long seq = sent.get();
+            final ByteBuffer payload = reader.payload();
+            buffer.clear();
+            buffer.put(payload);
+            while (buffer.position() < TAG_SIZE) buffer.put((byte) ' ');
+            buffer.flip();
+            LoadGenerator.putHex(buffer, 0, seq);
+            final int connection = (reader.address().hashCode() & 0x7fffffff) % channels.length;
+            // publish the schedule before sending, as the reply can beat the send call back
+            intended[(int) (seq & (IN_FLIGHT - 1))] = due;
+            sent.lazySet(seq + 1);
+            channels[connection].send(buffer, target);
+
+            if (!reader.next()) {
+                for (int i = 0; i < readers.length; i++) {
+                    if (readers[i] == reader) readers[i] = null;
+                }
+                remaining--;
+            }
+        }
+    }
+
+    private static void waitUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            if (remaining > 100000) {
+                LockSupport.parkNanos(remaining - 50000);
+            } else {
+                Thread.yield();
+            }
+        }
+    }
+
+    private class Receiver implements Runnable {
+        private final DatagramChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+
+        Receiver(DatagramChannel channel) {
+            this.channel = channel;
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    buffer.clear();
+                    channel.receive(buffer);
+                    final long now = System.nanoTime();
+                    received.incrementAndGet();
+                    if (buffer.position() < TAG_SIZE) {
+                        unmatched.incrementAndGet();
+                        continue;
+                    }
+                    final long seq = LoadGenerator.getHex(buffer, 0);
+                    // the slot has been reused if the sender is more than IN_FLIGHT ahead
+                    if (seq < 0 || seq >= sent.get() || sent.get() - seq > IN_FLIGHT) {
+                        unmatched.incrementAndGet();
+                        continue;
+                    }
+                    latency.recordValue(Math.min(now - intended[(int) (seq & (IN_FLIGHT - 1))], HIGHEST_TRACKABLE_NANOS));
+                }
+            } catch (ClosedChannelException e) {
+                // finished
+            } catch (IOException e) {
+                System.out.println(e);
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package example;
+
+/**
+ * Common lifecycle for the UDP echo servers, so they can be benchmarked side by side
+ */
+public interface UdpServer {
+
+    void start() throws Exception;
+
+    void stop() throws Exception;
+}
@@ -0,0 +1,63 @@
+package example;
+
+import java.io.*;
+
+/**
+ * Reads the kernel's count of datagrams dropped on our sockets
+ * <p>
+ * On linux every udp socket has a drops counter in /proc/net/udp and /proc/net/udp6, which goes
+ * up when a datagram arrives to a full receive buffer. Those are the packets that never reached
+ * our receive loop, so nothing in the JVM sees them. Anywhere else the count is unknown
+ */
+final class UdpSocketStats {
+
+    private static final String[] TABLES = { "/proc/net/udp", "/proc/net/udp6" };
+
+    private UdpSocketStats() {
+    }
+
+    /**
+     * @return datagrams dropped so far across all sockets bound to the local port, or -1 if
+     *         the platform doesn't say
+     */
+    public static long drops(int port) {
+        long drops = 0;
+        boolean found = false;
+        for (String table : TABLES) {
+            final File file = new File(table);
+            if (!file.canRead()) continue;
+            found = true;
+            try {
+                drops += drops(file, port);
+            } catch (IOException e) {
+                return -1;
+            }
+        }
+        return found ? drops : -1;
+    }
+
+    /**
+     * Lines look like: sl local_address rem_address st tx_queue:rx_queue ... drops, with the
+     * local address as hex address:port and the drop count in the last column
+     */
+    private static long drops(File table, int port) throws IOException {
+        final BufferedReader in = new BufferedReader(new FileReader(table));
+        try {
+            long drops = 0;
+            // skip the header
+            String line = in.readLine();
+            while ((line = in.readLine()) != null) {
+                final String[] fields = line.trim().split("\\s+");
+                if (fields.length < 13) continue;
+                final String local = fields[1];
+                final int localPort = Integer.parseInt(local.substring(local.indexOf(':') + 1), 16);
+                if (localPort == port) {
+                    drops += Long.parseLong(fields[fields.length - 1]);
+                }
+            }
+            return drops;
+        } finally {
+            in.close();
+        }
+    }
+}
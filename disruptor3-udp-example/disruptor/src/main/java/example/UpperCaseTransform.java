@@ -0,0 +1,95 @@
+package example;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Upper-cases UTF-8 text straight from one buffer to another, without going through String
+ * <p>
+ * ASCII bytes take a fast path. Multi-byte sequences are decoded to a code point, mapped with
+ * Character.toUpperCase and re-encoded; malformed bytes are copied through unchanged.
+ * Unlike String.toUpperCase this ignores the locale and the one-to-many special casings
+ * (eg: sharp s to SS), since those need a lookup table and can allocate
+ */
+public class UpperCaseTransform implements ByteTransform {
+
+    public void transform(ByteBuffer src, ByteBuffer dst) {
+        final int length = src.limit();
+        int i = 0;
+        while (i < length && dst.hasRemaining()) {
+            final byte b = src.get(i);
+            if (b >= 0) {
+                // ascii fast path
+                dst.put(b >= 'a' && b <= 'z' ? (byte) (b - ('a' - 'A')) : b);
+                i++;
+                continue;
+            }
+
+            final int n = sequenceLength(b);
+            final int cp = decode(src, i, n, length);
+            if (cp < 0) {
+                // not valid utf-8, pass the byte through and resync on the next one
+                dst.put(b);
+                i++;
+                continue;
+            }
+
+            final int upper = Character.toUpperCase(cp);
+            if (dst.remaining() < encodedLength(upper)) {
+                // a handful of code points grow when upper-cased; don't split one at the end
+                break;
+            }
+            encode(upper, dst);
+            i += n;
+        }
+    }
+
+    private static int sequenceLength(byte lead) {
+        if ((lead & 0xE0) == 0xC0) return 2;
+        if ((lead & 0xF0) == 0xE0) return 3;
+        if ((lead & 0xF8) == 0xF0) return 4;
+        return -1;
+    }
+
+    /**
+     * @return the code point starting at offset, or -1 if the sequence is malformed, overlong,
+     *         a surrogate or runs past the end of the datagram
+     */
+    private static int decode(ByteBuffer src, int offset, int n, int length) {
+        if (n < 0 || offset + n > length) return -1;
+        int cp = src.get(offset) & (0x7F >> n);
+        for (int k = 1; k < n; k++) {
+            final byte c = src.get(offset + k);
+            if ((c & 0xC0) != 0x80) return -1;
+            cp = (cp << 6) | (c & 0x3F);
+        }
+        if (encodedLength(cp) != n) return -1;
+        if (cp >= Character.MIN_SURROGATE && cp <= Character.MAX_SURROGATE) return -1;
+        if (cp > Character.MAX_CODE_POINT) return -1;
+        return cp;
+    }
+
+    private static int encodedLength(int cp) {
+        if (cp < 0x80) return 1;
+        if (cp < 0x800) return 2;
+        if (cp < 0x10000) return 3;
+        return 4;
+    }
+
+    private static void encode(int cp, ByteBuffer dst) {
+        if (cp < 0x80) {
+            dst.put((byte) cp);
+        } else if (cp < 0x800) {
+            dst.put((byte) (0xC0 | (cp >> 6)));
+            dst.put((byte) (0x80 | (cp & 0x3F)));
+        } else if (cp < 0x10000) {
+            dst.put((byte) (0xE0 | (cp >> 12)));
+            dst.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+            dst.put((byte) (0x80 | (cp & 0x3F)));
+        } else {
+            dst.put((byte) (0xF0 | (cp >> 18)));
+            dst.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+            dst.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+            dst.put((byte) (0x80 | (cp & 0x3F)));
+        }
+    }
+}
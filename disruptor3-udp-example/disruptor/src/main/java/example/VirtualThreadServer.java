@@ -0,0 +1,194 @@
+package example;
+import java.io.*;
+import java.lang.reflect.Method;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.*;
+
+/**
+ * ThreadPoolServer's one task per packet design, with a virtual thread per packet
+ * <p>
+ * The responder is the same blocking-style code as ThreadPoolServer's, but each one runs on a
+ * fresh virtual thread instead of a pooled platform thread. A semaphore bounds how many are in
+ * flight; the receiver blocks on it, pushing back onto the socket receive buffer. Each permit
+ * comes with a slot holding a receive buffer and a reply buffer, so beyond the thread itself
+ * nothing is allocated per packet. Replies go out through a few sockets, one per cpu, that the
+ * slots share; sends on one socket are safe from many threads, and a socket per slot would
+ * hold a file descriptor per permit whether or not there is any traffic.
+ * <p>
+ * Virtual threads need Java 21. The code is built for older targets, so the factory is looked
+ * up reflectively; on an older JVM it falls back to platform threads and says so, which makes
+ * it a thread-per-packet server to compare against
+ */
+public class VirtualThreadServer implements UdpServer {
+
+    private static final int BYTE_ARRAY_SIZE = 1024;
+
+    private Thread t;
+
+    private final DatagramSocket server;
+    private final ThreadFactory threads;
+    private final boolean virtual;
+    private final int permits;
+    private final Semaphore inFlight;
+    private final BlockingQueue<Slot> slots;
+    private final DatagramSocket[] replySockets;
+
+    public static void main(String[] args) throws Exception {
+	VirtualThreadServer s = new VirtualThreadServer(9999, Integer.getInteger("virtual.permits", 1024));
+	s.start();
+	System.console().readLine("VirtualThreadServer running on port 9999. Press enter to exit.");
+	s.stop();
+	System.exit(0);
+    }
+
+    public VirtualThreadServer(int port) throws SocketException {
+        this(port, 1024);
+    }
+
+    /**
+     * @param permits most packets being responded to at once, and the number of slots
+     */
+    public VirtualThreadServer(int port, int permits) throws SocketException {
+        if (permits < 1) {
+            throw new IllegalArgumentException("need at least one permit: " + permits);
+        }
+        this.server = new DatagramSocket(port);
+        final ThreadFactory virtualThreads = virtualThreadFactory();
+        this.virtual = virtualThreads != null;
+        this.threads = virtual ? virtualThreads : new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "responder");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            };
+        this.permits = permits;
+        this.inFlight = new Semaphore(permits);
+        this.replySockets = new DatagramSocket[Math.min(permits, Runtime.getRuntime().availableProcessors())];
+        for (int i = 0; i < replySockets.length; i++) {
+            replySockets[i] = new DatagramSocket();
+        }
+        this.slots = new ArrayBlockingQueue<Slot>(permits);
+        for (int i = 0; i < permits; i++) {
+            slots.add(new Slot(replySockets[i % replySockets.length]));
+        }
+    }
+
+    /**
+     * @return Thread.ofVirtual().factory(), or null before Java 21
+     */
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            final Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            final Object builder = ofVirtual.invoke(null);
+            final Method factory = ofVirtual.getReturnType().getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return true if responders run on virtual threads, false if this JVM has none
+     */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    public void start() throws Exception {
+        if (!virtual) {
+            System.out.println("virtual threads need Java 21, falling back to a platform thread per packet");
+        }
+	t = new Thread(new Runnable() {
+		public void run() {
+		    try {
+			while(true) {
+                            inFlight.acquire();
+                            // there is one slot per permit, so one is always free here
+                            final Slot slot = slots.poll();
+                            try {
+                                slot.packet.setData(slot.data, 0, slot.data.length);
+                                server.receive(slot.packet);
+                                threads.newThread(new PacketResponder(slot)).start();
+                            } catch (Throwable e) {
+                                // the responder never ran, so hand its slot and permit back here
+                                slots.offer(slot);
+                                inFlight.release();
+                                throw e;
+                            }
+			}
+		    } catch (SocketException e) {
+			if (!e.toString().equals("java.net.SocketException: Socket closed")) {
+			    System.out.println(e);
+			    e.printStackTrace();
+			}
+		    } catch (InterruptedException e) {
+                        // stopping
+		    } catch (Exception e) {
+			System.out.println(e);
+			e.printStackTrace();
+		    }
+		}}, "receiver");
+	t.start();
+    }
+
+    public void stop() throws Exception {
+	if (t == null)
+	    return;
+	t.interrupt();
+	server.close();
+	t.join();
+        // give the responders still running a while to finish, then close the reply sockets
+        if (!inFlight.tryAcquire(permits, 5, TimeUnit.SECONDS)) {
+            System.out.println((permits - inFlight.availablePermits()) + " responder(s) still running at stop");
+        }
+        for (DatagramSocket socket : replySockets) {
+            socket.close();
+        }
+        t = null;
+    }
+
+    /**
+     * Everything one responder needs, allocated once per permit; the reply socket is shared
+     */
+    private static class Slot {
+        final byte[] data = new byte[BYTE_ARRAY_SIZE];
+        final DatagramPacket packet = new DatagramPacket(data, data.length);
+        final ByteBuffer buffer = ByteBuffer.wrap(data);
+        final byte[] sendData = new byte[BYTE_ARRAY_SIZE];
+        final ByteBuffer sendBuffer = ByteBuffer.wrap(sendData);
+        final DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length);
+        final ByteTransform transform = new UpperCaseTransform();
+        final DatagramSocket socket;
+
+        Slot(DatagramSocket socket) {
+            this.socket = socket;
+        }
+    }
+
+    private class PacketResponder implements Runnable {
+	private final Slot slot;
+	public PacketResponder(Slot slot) {
+	    this.slot = slot;
+	}
+
+	public void run() {
+	    try {
+                slot.buffer.clear();
+                slot.buffer.limit(slot.packet.getLength());
+                slot.sendBuffer.clear();
+                slot.transform.transform(slot.buffer, slot.sendBuffer);
+                slot.sendPacket.setData(slot.sendData, 0, slot.sendBuffer.position());
+                slot.sendPacket.setAddress(slot.packet.getAddress());
+                slot.sendPacket.setPort(slot.packet.getPort());
+		slot.socket.send(slot.sendPacket);
+	    } catch (Exception e) {
+		throw new RuntimeException(e);
+	    } finally {
+                slots.offer(slot);
+                inFlight.release();
+            }
+	}
+    }
+}
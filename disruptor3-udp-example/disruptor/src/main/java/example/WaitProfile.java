@@ -0,0 +1,59 @@
+package example;
+
+import com.lmax.disruptor.*;
+
+/**
+ * Deployment profiles for the Disruptor servers, trading latency against CPU burn
+ * <p>
+ * Selected with -Ddisruptor.profile=latency|yielding|balanced|efficiency, or as the first
+ * argument to DisruptorServer. Every ring gets its own WaitStrategy instance
+ */
+public enum WaitProfile {
+
+    /** Busy spin; lowest latency, but each handler thread needs a core of its own */
+    LATENCY(true) {
+        public WaitStrategy newWaitStrategy() {
+            return new BusySpinWaitStrategy();
+        }
+    },
+
+    /** Spin then Thread.yield(); close to LATENCY, but gives the core up to other runnable threads */
+    YIELDING(true) {
+        public WaitStrategy newWaitStrategy() {
+            return new YieldingWaitStrategy();
+        }
+    },
+
+    /** Spin, yield, then park; what the scala variants use */
+    BALANCED(false) {
+        public WaitStrategy newWaitStrategy() {
+            return new SleepingWaitStrategy();
+        }
+    },
+
+    /** Lock and condition; idle threads cost nothing but every wakeup goes through the kernel */
+    EFFICIENCY(false) {
+        public WaitStrategy newWaitStrategy() {
+            return new BlockingWaitStrategy();
+        }
+    };
+
+    private final boolean spins;
+
+    WaitProfile(boolean spins) {
+        this.spins = spins;
+    }
+
+    public abstract WaitStrategy newWaitStrategy();
+
+    /**
+     * @return true if idle handler threads keep a core busy
+     */
+    public boolean spins() {
+        return spins;
+    }
+
+    public static WaitProfile fromName(String name) {
+        return valueOf(name.trim().toUpperCase());
+    }
+}
@@ -0,0 +1,94 @@
+package example;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ * Unit test for sender address interning
+ */
+public class AddressCacheTest extends TestCase {
+
+    public void testEqualAddressesShareOneInstance() {
+        final AddressCache cache = new AddressCache(4);
+        final SocketAddress first = new InetSocketAddress("127.0.0.1", 1000);
+        final SocketAddress second = new InetSocketAddress("127.0.0.1", 1000);
+        assertSame(first, cache.intern(first, 1));
+        assertSame(first, cache.intern(second, 2));
+        assertSame(first, cache.intern(second, 3));
+        assertEquals(1, cache.size());
+        assertEquals(3, cache.packets(0));
+        assertEquals(3, cache.lastSeenNanos(0));
+        assertEquals(1, cache.misses.get());
+        assertEquals(2, cache.hits.get());
+    }
+
+    public void testKeyedOnAddressAndPort() throws Exception {
+        final AddressCache cache = new AddressCache(8);
+        final SocketAddress v4 = new InetSocketAddress("127.0.0.1", 1000);
+        final SocketAddress otherPort = new InetSocketAddress("127.0.0.1", 1001);
+        final SocketAddress otherHost = new InetSocketAddress("127.0.0.2", 1000);
+        final SocketAddress v6 = new InetSocketAddress(InetAddress.getByName("::1"), 1000);
+        assertSame(v4, cache.intern(v4, 0));
+        assertSame(otherPort, cache.intern(otherPort, 0));
+        assertSame(otherHost, cache.intern(otherHost, 0));
+        assertSame(v6, cache.intern(v6, 0));
+        assertSame(v6, cache.intern(new InetSocketAddress(InetAddress.getByName("::1"), 1000), 0));
+        assertSame(v4, cache.intern(new InetSocketAddress("127.0.0.1", 1000), 0));
+        assertEquals(4, cache.size());
+    }
+
+    public void testUnresolvedAddressesPassThrough() {
+        final AddressCache cache = new AddressCache(4);
+        final SocketAddress unresolved = InetSocketAddress.createUnresolved("example.invalid", 1000);
+        assertSame(unresolved, cache.intern(unresolved, 0));
+        assertEquals(0, cache.size());
+    }
+
+    public void testClockKeepsRecentlyUsedPeers() {
+        final AddressCache cache = new AddressCache(4);
+        final SocketAddress[] peers = new SocketAddress[6];
+        for (int i = 0; i < peers.length; i++) {
+            peers[i] = new InetSocketAddress("127.0.0.1", 1000 + i);
+        }
+        for (int i = 0; i < 4; i++) {
+            cache.intern(peers[i], 0);
+        }
+        // full, and all used: the hand clears every mark then takes the first
+        cache.intern(peers[4], 0);
+        assertEquals(1, cache.evictions.get());
+        // peer 1 has been used since the sweep, so peer 2 goes in its place
+        cache.intern(new InetSocketAddress("127.0.0.1", 1001), 0);
+        cache.intern(peers[5], 0);
+        final long misses = cache.misses.get();
+        assertSame(peers[1], cache.intern(new InetSocketAddress("127.0.0.1", 1001), 0));
+        assertSame(peers[3], cache.intern(new InetSocketAddress("127.0.0.1", 1003), 0));
+        assertEquals(misses, cache.misses.get());
+        cache.intern(new InetSocketAddress("127.0.0.1", 1002), 0);
+        assertEquals(misses + 1, cache.misses.get());
+    }
+
+    public void testChurnKeepsEveryCachedPeerFindable() {
+        final AddressCache cache = new AddressCache(64);
+        final SocketAddress[] peers = new SocketAddress[256];
+        for (int i = 0; i < peers.length; i++) {
+            peers[i] = new InetSocketAddress("10.0." + (i >> 4) + "." + (i & 15), 5000 + i);
+        }
+        final Random random = new Random(42);
+        for (int n = 0; n < 100000; n++) {
+            final int i = random.nextInt(peers.length);
+            cache.intern(peers[i], n);
+        }
+        // whatever survived must still be found through the index, not added again
+        for (int e = 0; e < cache.size(); e++) {
+            final long misses = cache.misses.get();
+            final InetSocketAddress cached = cache.address(e);
+            assertSame(cached, cache.intern(new InetSocketAddress(cached.getAddress(), cached.getPort()), 0));
+            assertEquals(misses, cache.misses.get());
+        }
+        assertEquals(64, cache.size());
+        assertEquals(cache.misses.get() - 64, cache.evictions.get());
+    }
+}
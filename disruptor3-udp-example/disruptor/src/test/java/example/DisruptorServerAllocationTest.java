@@ -0,0 +1,82 @@
+package example;
+
+import java.net.*;
+import junit.framework.TestCase;
+
+/**
+ * Checks the disruptor server allocates nothing per packet once warm
+ * <p>
+ * Counts the bytes allocated by the receive, business logic and send threads over a run of
+ * round trips from a single client. Uses the yielding wait profile, since the blocking one
+ * allocates a lock node whenever a handler parks. Run plain and with the rate limiter in front,
+ * which keys every packet on its sender
+ */
+public class DisruptorServerAllocationTest extends TestCase {
+
+    private static final int PORT = 19876;
+    private static final int WARMUP = 20000;
+    private static final int ROUND = 20000;
+    private static final int ROUNDS = 3;
+
+    public void testSteadyStateIsGarbageFree() throws Exception {
+        final DisruptorServer server = new DisruptorServer(PORT, false, 1);
+        assertGarbageFree(server);
+    }
+
+    public void testSteadyStateWithRateLimitIsGarbageFree() throws Exception {
+        final DisruptorServer server = new DisruptorServer(PORT, false, 1);
+        // far above what one client can send, so nothing is limited
+        server.setRateLimit(100000000, 1000, 64);
+        assertGarbageFree(server);
+    }
+
+    public void testRateLimitNeedsTheAddressCache() throws Exception {
+        final DisruptorServer server = new DisruptorServer(PORT, false, 1);
+        server.setAddressCache(0);
+        server.setRateLimit(1000, 10, 64);
+        try {
+            server.start();
+            fail("started without the address cache");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    private static void assertGarbageFree(DisruptorServer server) throws Exception {
+        // older channels build a new sender address for every datagram
+        if (Double.parseDouble(System.getProperty("java.specification.version")) < 16) return;
+
+        server.setWaitProfile(WaitProfile.YIELDING);
+        server.start();
+        final DatagramSocket client = new DatagramSocket();
+        try {
+            client.setSoTimeout(5000);
+            final byte[] request = "hello world".getBytes("UTF-8");
+            final DatagramPacket send = new DatagramPacket(request, request.length, InetAddress.getByName("localhost"), PORT);
+            final DatagramPacket reply = new DatagramPacket(new byte[2048], 2048);
+            roundTrips(client, send, reply, WARMUP);
+
+            // the receive thread samples its counter every 64 packets, so allow a round or two
+            // of jitter by keeping the best one
+            long best = Long.MAX_VALUE;
+            for (int i = 0; i < ROUNDS && best > 0; i++) {
+                final long before = server.allocatedBytes();
+                roundTrips(client, send, reply, ROUND);
+                Thread.sleep(100);
+                best = Math.min(best, server.allocatedBytes() - before);
+            }
+            assertEquals("HELLO WORLD", new String(reply.getData(), 0, reply.getLength(), "UTF-8"));
+            assertEquals("bytes allocated per packet", 0, best / ROUND);
+        } finally {
+            client.close();
+            server.stop();
+        }
+    }
+
+    private static void roundTrips(DatagramSocket client, DatagramPacket send, DatagramPacket reply, int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            client.send(send);
+            client.receive(reply);
+        }
+    }
+}
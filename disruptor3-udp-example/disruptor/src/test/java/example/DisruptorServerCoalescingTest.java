@@ -0,0 +1,59 @@
+package example;
+
+import java.net.*;
+import java.nio.ByteBuffer;
+import junit.framework.TestCase;
+
+/**
+ * Checks a client can split coalesced replies back apart
+ * <p>
+ * Sends a run of requests without waiting, so the send handler is likely to find several
+ * replies to the one address in a batch, and reads every reply back out of the length
+ * prefixed datagrams in order
+ */
+public class DisruptorServerCoalescingTest extends TestCase {
+
+    private static final int PORT = 19877;
+    private static final int REQUESTS = 200;
+
+    public void testCoalescedRepliesSplitBackApart() throws Exception {
+        final DisruptorServer server = new DisruptorServer(PORT, false, 1);
+        server.setCoalescing(4096);
+        server.start();
+        final DatagramSocket client = new DatagramSocket();
+        try {
+            client.setSoTimeout(5000);
+            final InetAddress localhost = InetAddress.getByName("localhost");
+            for (int i = 0; i < REQUESTS; i++) {
+                final byte[] request = ("hello " + i).getBytes("UTF-8");
+                client.send(new DatagramPacket(request, request.length, localhost, PORT));
+            }
+            final DatagramPacket packet = new DatagramPacket(new byte[65536], 65536);
+            int replies = 0;
+            while (replies < REQUESTS) {
+                client.receive(packet);
+                final ByteBuffer datagram = ByteBuffer.wrap(packet.getData(), 0, packet.getLength());
+                while (datagram.hasRemaining()) {
+                    final int length = datagram.getShort() & 0xffff;
+                    assertTrue("length runs past the datagram", length <= datagram.remaining());
+                    assertEquals("HELLO " + replies, new String(packet.getData(), datagram.position(), length, "UTF-8"));
+                    datagram.position(datagram.position() + length);
+                    replies++;
+                }
+            }
+        } finally {
+            client.close();
+            server.stop();
+        }
+    }
+
+    public void testCoalescingMustFitAWholeReply() {
+        final DisruptorServer server = new DisruptorServer(PORT, false, 1);
+        try {
+            server.setCoalescing(100);
+            fail("accepted a coalescing buffer smaller than a reply");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
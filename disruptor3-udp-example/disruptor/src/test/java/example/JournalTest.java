@@ -0,0 +1,103 @@
+package example;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import junit.framework.TestCase;
+
+/**
+ * Unit test for writing and reading back the journal
+ */
+public class JournalTest extends TestCase {
+
+    private File directory;
+
+    protected void setUp() throws Exception {
+        directory = File.createTempFile("journal", "");
+        directory.delete();
+    }
+
+    protected void tearDown() {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File f : files) f.delete();
+        }
+        directory.delete();
+    }
+
+    public void testRecordsReadBackWithTheirPeers() throws Exception {
+        final InetSocketAddress v4 = new InetSocketAddress("10.1.2.3", 1000);
+        final InetSocketAddress v6 = new InetSocketAddress(InetAddress.getByName("fe80::1"), 2000);
+        final Journal journal = journal("journal-0");
+        journal.append(1, v4, bytes("one"), 3);
+        journal.append(2, v6, bytes("two"), 3);
+        journal.append(3, v4, bytes("three"), 5);
+        journal.close();
+
+        final JournalReader reader = new JournalReader(JournalReader.segments(directory, "journal-0"));
+        assertTrue(reader.next());
+        assertEquals(1, reader.nanos());
+        assertEquals(v4, reader.address());
+        assertEquals("one", text(reader.payload()));
+        assertTrue(reader.next());
+        assertEquals(v6, reader.address());
+        assertEquals("two", text(reader.payload()));
+        assertTrue(reader.next());
+        assertEquals(v4, reader.address());
+        assertEquals("three", text(reader.payload()));
+        assertFalse(reader.next());
+    }
+
+    public void testRecordWithoutItsLengthEndsTheSegment() throws Exception {
+        final InetSocketAddress peer = new InetSocketAddress("10.1.2.3", 1000);
+        final Journal journal = journal("journal-0");
+        journal.append(1, peer, bytes("kept"), 4);
+        journal.append(2, peer, bytes("torn"), 4);
+        journal.close();
+
+        // what a crash between writing the second body and its length leaves behind
+        final int second = Journal.HEADER_SIZE + Journal.RECORD_HEADER_SIZE + 4 + 4;
+        final RandomAccessFile raf = new RandomAccessFile(Journal.segmentFile(directory, "journal-0", 0), "rw");
+        try {
+            raf.seek(second);
+            raf.writeInt(0);
+        } finally {
+            raf.close();
+        }
+
+        final JournalReader reader = new JournalReader(JournalReader.segments(directory, "journal-0"));
+        assertTrue(reader.next());
+        assertEquals("kept", text(reader.payload()));
+        assertFalse(reader.next());
+    }
+
+    public void testJournalsAreGroupedByWholeName() throws Exception {
+        final InetSocketAddress peer = new InetSocketAddress("10.1.2.3", 1000);
+        for (String name : new String[] { "journal-1", "journal-10" }) {
+            final Journal journal = journal(name);
+            journal.append(1, peer, bytes(name), name.length());
+            journal.close();
+        }
+        final Map<String, File[]> journals = JournalReader.journals(directory);
+        assertEquals(2, journals.size());
+        assertEquals(1, journals.get("journal-1").length);
+        assertEquals(1, journals.get("journal-10").length);
+    }
+
+    private Journal journal(String name) throws Exception {
+        return new Journal(directory, name, 4096, FsyncPolicy.NONE, 0);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes();
+    }
+
+    private static String text(ByteBuffer payload) {
+        final byte[] bytes = new byte[payload.remaining()];
+        payload.get(bytes);
+        return new String(bytes);
+    }
+}
@@ -0,0 +1,78 @@
+package example;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import junit.framework.TestCase;
+
+/**
+ * Unit test for the per-client token buckets
+ */
+public class RateLimiterTest extends TestCase {
+
+    private static final long SECOND = 1000000000L;
+
+    private final SocketAddress alice = new InetSocketAddress("127.0.0.1", 1000);
+    private final SocketAddress bob = new InetSocketAddress("127.0.0.1", 2000);
+    private final long aliceKey = AddressCache.key(alice);
+    private final long bobKey = AddressCache.key(bob);
+
+    public void testBurstThenSteadyRate() {
+        // 10 per second, so one every 100ms, bursts of 5
+        final RateLimiter limiter = new RateLimiter(10, 5, 16);
+        final long start = 10 * SECOND;
+        for (int i = 0; i < 5; i++) {
+            assertTrue(limiter.allow(aliceKey, alice, start));
+        }
+        assertFalse(limiter.allow(aliceKey, alice, start));
+        assertFalse(limiter.allow(aliceKey, alice, start + SECOND / 20));
+        assertTrue(limiter.allow(aliceKey, alice, start + SECOND / 10));
+        assertFalse(limiter.allow(aliceKey, alice, start + SECOND / 10));
+        // quiet for a while, the whole burst is back but no more
+        for (int i = 0; i < 5; i++) {
+            assertTrue(limiter.allow(aliceKey, alice, start + 10 * SECOND));
+        }
+        assertFalse(limiter.allow(aliceKey, alice, start + 10 * SECOND));
+        assertEquals(4, limiter.limited.get());
+    }
+
+    public void testClientsHaveTheirOwnBuckets() {
+        final RateLimiter limiter = new RateLimiter(1, 1, 16);
+        assertTrue(limiter.allow(aliceKey, alice, SECOND));
+        assertFalse(limiter.allow(aliceKey, alice, SECOND));
+        assertFalse(limiter.allow(aliceKey, alice, SECOND));
+        assertTrue(limiter.allow(bobKey, bob, SECOND));
+        int drops = 0;
+        for (int s = 0; s < limiter.slots(); s++) {
+            if (limiter.key(s) == aliceKey) {
+                assertEquals(alice, limiter.address(s));
+                drops += limiter.drops(s);
+            }
+        }
+        assertEquals(2, drops);
+    }
+
+    public void testFullTableSharesOverflowBucket() {
+        final RateLimiter limiter = new RateLimiter(1, 1, 4);
+        // three slots to hand out, every client stays busy
+        for (int port = 1; port <= 3; port++) {
+            final SocketAddress client = new InetSocketAddress("127.0.0.1", port);
+            assertTrue(limiter.allow(AddressCache.key(client), client, SECOND));
+        }
+        final SocketAddress late = new InetSocketAddress("127.0.0.1", 4);
+        final SocketAddress later = new InetSocketAddress("127.0.0.1", 5);
+        assertTrue(limiter.allow(AddressCache.key(late), late, SECOND));
+        assertFalse(limiter.allow(AddressCache.key(later), later, SECOND));
+        assertEquals(0, limiter.key(limiter.slots() - 1));
+        assertEquals(1, limiter.drops(limiter.slots() - 1));
+        // once a bucket fills up again its slot can be taken over
+        assertTrue(limiter.allow(AddressCache.key(later), later, 3 * SECOND));
+        assertEquals(1, limiter.drops(limiter.slots() - 1));
+    }
+
+    public void testKeys() throws Exception {
+        assertEquals(0x7f000001L << 16 | 1000, aliceKey);
+        final long v6 = AddressCache.key(new InetSocketAddress(java.net.InetAddress.getByName("::1"), 1000));
+        assertTrue(v6 < 0);
+        assertEquals(0, AddressCache.key(InetSocketAddress.createUnresolved("example.invalid", 1000)));
+    }
+}
@@ -0,0 +1,133 @@
+package example;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import junit.framework.TestCase;
+
+/**
+ * Unit test for fragment reassembly
+ */
+public class ReassemblerTest extends TestCase {
+
+    private final SocketAddress alice = new InetSocketAddress("127.0.0.1", 1000);
+    private final SocketAddress bob = new InetSocketAddress("127.0.0.1", 2000);
+
+    public void testSingleFragment() {
+        final Reassembler r = new Reassembler(4, 1000);
+        final int slot = r.accept(alice, fragment(7, message(10), 0), 0);
+        assertTrue(slot >= 0);
+        assertEquals(7, r.requestId(slot));
+        assertEquals(alice, r.address(slot));
+        assertEquals(message(10), r.message(slot));
+    }
+
+    public void testOutOfOrderFragments() {
+        final Reassembler r = new Reassembler(4, 1000);
+        final ByteBuffer message = message(3 * Framing.FRAGMENT_PAYLOAD + 5);
+        assertEquals(Reassembler.INCOMPLETE, r.accept(alice, fragment(1, message, 3), 0));
+        assertEquals(Reassembler.INCOMPLETE, r.accept(alice, fragment(1, message, 1), 0));
+        assertEquals(Reassembler.INCOMPLETE, r.accept(alice, fragment(1, message, 0), 0));
+        final int slot = r.accept(alice, fragment(1, message, 2), 0);
+        assertTrue(slot >= 0);
+        assertEquals(message, r.message(slot));
+        assertEquals(1, r.completed.get());
+    }
+
+    public void testLargestMessage() {
+        final Reassembler r = new Reassembler(1, 1000);
+        final ByteBuffer message = message(Framing.MAX_MESSAGE);
+        int slot = Reassembler.INCOMPLETE;
+        for (int i = Framing.MAX_FRAGMENTS - 1; i >= 0; i--) {
+            slot = r.accept(alice, fragment(9, message, i), 0);
+        }
+        assertEquals(0, slot);
+        assertEquals(message, r.message(slot));
+    }
+
+    public void testInterleavedSendersAndRequests() {
+        final Reassembler r = new Reassembler(4, 1000);
+        final ByteBuffer big = message(Framing.FRAGMENT_PAYLOAD + 1);
+        final ByteBuffer other = message(Framing.FRAGMENT_PAYLOAD + 2);
+        assertEquals(Reassembler.INCOMPLETE, r.accept(alice, fragment(1, big, 0), 0));
+        assertEquals(Reassembler.INCOMPLETE, r.accept(bob, fragment(1, other, 0), 0));
+        assertEquals(Reassembler.INCOMPLETE, r.accept(alice, fragment(2, other, 0), 0));
+        final int bobs = r.accept(bob, fragment(1, other, 1), 0);
+        final int alices = r.accept(alice, fragment(1, big, 1), 0);
+        assertEquals(other, r.message(bobs));
+        assertEquals(big, r.message(alices));
+        assertEquals(bob, r.address(bobs));
+    }
+
+    public void testRejectsDuplicatesAndMalformed() {
+        final Reassembler r = new Reassembler(4, 1000);
+        final ByteBuffer message = message(2 * Framing.FRAGMENT_PAYLOAD);
+        assertEquals(Reassembler.INCOMPLETE, r.accept(alice, fragment(1, message, 0), 0));
+        assertEquals(Reassembler.REJECTED, r.accept(alice, fragment(1, message, 0), 0));
+        // too short for a header, and a short fragment that isn't the last
+        assertEquals(Reassembler.REJECTED, r.accept(alice, ByteBuffer.allocate(3), 0));
+        final ByteBuffer shortFirst = ByteBuffer.allocate(Framing.FRAGMENT_SIZE);
+        Framing.putHeader(shortFirst, 2, 0, 2);
+        shortFirst.put((byte) 'a').flip();
+        assertEquals(Reassembler.REJECTED, r.accept(alice, shortFirst, 0));
+        assertEquals(3, r.rejected.get());
+    }
+
+    public void testSlabFullAndRelease() {
+        final Reassembler r = new Reassembler(2, 1000);
+        final ByteBuffer message = message(Framing.FRAGMENT_PAYLOAD + 1);
+        assertEquals(Reassembler.INCOMPLETE, r.accept(alice, fragment(1, message, 0), 0));
+        final int slot = r.accept(alice, fragment(2, message(1), 0), 0);
+        assertTrue(slot >= 0);
+        // one slot filling, one complete but not released
+        assertEquals(Reassembler.REJECTED, r.accept(alice, fragment(3, message(1), 0), 0));
+        r.release(slot);
+        assertTrue(r.accept(alice, fragment(3, message(1), 0), 0) >= 0);
+    }
+
+    public void testTimeoutEvictsPartialMessages() {
+        final Reassembler r = new Reassembler(2, 1000);
+        final ByteBuffer message = message(Framing.FRAGMENT_PAYLOAD + 1);
+        assertEquals(Reassembler.INCOMPLETE, r.accept(alice, fragment(1, message, 0), 0));
+        assertEquals(0, r.evictExpired(1000));
+        assertEquals(1, r.evictExpired(1001));
+        // the late fragment starts a new message rather than completing the old one
+        assertEquals(Reassembler.INCOMPLETE, r.accept(alice, fragment(1, message, 1), 1002));
+        assertEquals(1, r.evicted.get());
+    }
+
+    public void testProbeWindowIsBounded() {
+        final Reassembler r = new Reassembler(64, 1000);
+        final ByteBuffer message = message(Framing.FRAGMENT_PAYLOAD + 1);
+        // request ids that all hash to the same home slot, one more than the window holds
+        final int home = r.home(alice, 0);
+        final int[] ids = new int[Reassembler.PROBES + 1];
+        for (int id = 0, n = 0; n < ids.length; id++) {
+            if (r.home(alice, id) == home) ids[n++] = id;
+        }
+        for (int i = 0; i < Reassembler.PROBES; i++) {
+            assertEquals(Reassembler.INCOMPLETE, r.accept(alice, fragment(ids[i], message, 0), 0));
+        }
+        // the rest of the slab is free, but out of reach
+        assertEquals(Reassembler.REJECTED, r.accept(alice, fragment(ids[Reassembler.PROBES], message, 0), 0));
+        // the ones in the window are still found
+        for (int i = 0; i < Reassembler.PROBES; i++) {
+            assertTrue(r.accept(alice, fragment(ids[i], message, 1), 0) >= 0);
+        }
+    }
+
+    private static ByteBuffer message(int length) {
+        final ByteBuffer message = ByteBuffer.allocate(length);
+        for (int i = 0; i < length; i++) {
+            message.put(i, (byte) ('a' + i % 26));
+        }
+        return message;
+    }
+
+    private static ByteBuffer fragment(int requestId, ByteBuffer message, int index) {
+        final ByteBuffer fragment = ByteBuffer.allocate(Framing.FRAGMENT_SIZE);
+        Framing.putFragment(fragment, requestId, message, index);
+        fragment.flip();
+        return fragment;
+    }
+}
@@ -0,0 +1,106 @@
+package example;
+
+import java.net.*;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Round trip benchmark across all the servers
+ * <p>
+ * The server is started once per trial and shared by every benchmark thread; each thread has
+ * its own client socket. Run the suite with mvn integration-test, or run main() here to also
+ * sweep the thread count
+ */
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(3)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(5)
+public class UdpServerTest {
+
+    private static final int PORT = 9999;
+    private static final String ENDPOINT_NAME = "localhost";
+
+    @State(Scope.Benchmark)
+    public static class Server {
+
+        @Param({"bio", "threadpool", "bounded", "disruptor", "selector", "virtual"})
+        public String server;
+
+        private UdpServer instance;
+
+        @Setup(Level.Trial)
+        public void start() throws Exception {
+            instance = create(server);
+            instance.start();
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() throws Exception {
+            instance.stop();
+        }
+
+        private static UdpServer create(String name) throws Exception {
+            if ("bio".equals(name)) return new BioServer(PORT);
+            if ("threadpool".equals(name)) return new ThreadPoolServer(PORT);
+            if ("bounded".equals(name)) return new BoundedPoolServer(PORT);
+            if ("disruptor".equals(name)) return new DisruptorServer(PORT);
+            if ("selector".equals(name)) return new SelectorServer(PORT);
+            if ("virtual".equals(name)) return new VirtualThreadServer(PORT);
+            throw new IllegalArgumentException("unknown server " + name);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+
+        @Param({"16", "256", "1024"})
+        public int payload;
+
+        private DatagramSocket clientSocket;
+        private DatagramPacket sendPacket;
+        private DatagramPacket receivePacket;
+
+        @Setup(Level.Trial)
+        public void open() throws Exception {
+            final byte[] sendBuffer = new byte[payload];
+            Arrays.fill(sendBuffer, (byte) 'a');
+            clientSocket = new DatagramSocket();
+            clientSocket.setSoTimeout(10000);
+            sendPacket = new DatagramPacket(sendBuffer, sendBuffer.length, InetAddress.getByName(ENDPOINT_NAME), PORT);
+            // bio and threadpool reply with their whole receive buffer, regardless of the request
+            receivePacket = new DatagramPacket(new byte[2048], 2048);
+        }
+
+        @TearDown(Level.Trial)
+        public void close() {
+            clientSocket.close();
+        }
+    }
+
+    @Benchmark
+    public int udpRoundtrip(Server server, Client client) throws Exception {
+        client.clientSocket.send(client.sendPacket);
+        client.clientSocket.receive(client.receivePacket);
+        return client.receivePacket.getLength();
+    }
+
+    /**
+     * Runs the suite once for each thread count given, eg: 1 2 4 8
+     */
+    public static void main(String[] args) throws Exception {
+        final String[] threads = args.length > 0 ? args : new String[] { "1", "2", "4", "8" };
+        for (String t : threads) {
+            final Options options = new OptionsBuilder()
+                .include(UdpServerTest.class.getSimpleName())
+                .threads(Integer.parseInt(t))
+                .build();
+            new Runner(options).run();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package example;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import junit.framework.TestCase;
+
+/**
+ * Unit test for the allocation-free upper-case transform
+ */
+public class UpperCaseTransformTest extends TestCase {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final ByteTransform transform = new UpperCaseTransform();
+
+    public void testAscii() {
+        assertEquals("A B C D E F G", run("a b c d e f g"));
+        assertEquals("HELLO, WORLD! 123 {}", run("Hello, World! 123 {}"));
+    }
+
+    public void testOnlyValidLengthIsTransformed() {
+        final ByteBuffer src = ByteBuffer.allocate(64);
+        src.put("abcdef".getBytes(UTF8));
+        src.flip();
+        src.limit(3);
+        final ByteBuffer dst = ByteBuffer.allocate(64);
+        transform.transform(src, dst);
+        dst.flip();
+        assertEquals(3, dst.remaining());
+        assertEquals(0, src.position());
+    }
+
+    public void testMultiByte() {
+        assertEquals("\u00c9T\u00c9 \u0416\u0418\u0417\u041d\u042c \u03a3", run("\u00e9t\u00e9 \u0436\u0438\u0437\u043d\u044c \u03c3"));
+        // supplementary plane: deseret small letter long i -> capital
+        assertEquals(new String(Character.toChars(0x10400)), run(new String(Character.toChars(0x10428))));
+    }
+
+    public void testMalformedBytesPassThrough() {
+        final byte[] bad = { 'a', (byte) 0xC3, 'b', (byte) 0xFF, (byte) 0xE2, (byte) 0x82 };
+        final ByteBuffer dst = ByteBuffer.allocate(16);
+        transform.transform(ByteBuffer.wrap(bad), dst);
+        dst.flip();
+        final byte[] out = new byte[dst.remaining()];
+        dst.get(out);
+        assertEquals(bad.length, out.length);
+        assertEquals('A', out[0]);
+        assertEquals((byte) 0xC3, out[1]);
+        assertEquals('B', out[2]);
+        assertEquals((byte) 0xFF, out[3]);
+    }
+
+    public void testDirectBuffersAndTruncation() {
+        final ByteBuffer src = ByteBuffer.allocateDirect(16);
+        src.put("abcdef".getBytes(UTF8));
+        src.flip();
+        final ByteBuffer dst = ByteBuffer.allocateDirect(4);
+        transform.transform(src, dst);
+        dst.flip();
+        final byte[] out = new byte[dst.remaining()];
+        dst.get(out);
+        assertEquals("ABCD", new String(out, UTF8));
+    }
+
+    private String run(String input) {
+        final ByteBuffer dst = ByteBuffer.allocate(256);
+        transform.transform(ByteBuffer.wrap(input.getBytes(UTF8)), dst);
+        dst.flip();
+        final byte[] out = new byte[dst.remaining()];
+        dst.get(out);
+        return new String(out, UTF8);
+    }
+}
@@ -0,0 +1,293 @@
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs the same workloads against SpmcExecutorService, MpmcExecutorService taking tasks in
+ * batches and one at a time, StripedExecutorService with and without stealing, and a
+ * ThreadPoolExecutor set up to match
+ *
+ * All get the same number of threads, all started before timing, and a bounded queue of the
+ * same capacity, split across the stripes for the striped ones, that blocks the submitter
+ * when full, so none gets to buffer more or reject
+ * work the others would have to run. Each workload is run for a number of warmup rounds first,
+ * then the measured rounds are reported as mean and best.
+ *
+ *   pi     - the pi slices from the other experiments, 1M tasks of 100 iterations
+ *   tiny   - 1M tasks that only count down, so the queue hand off is all there is
+ *   batch  - the tiny tasks handed over 64 at a time with executeBatch(), where there is one
+ *   skewed - the tiny tasks, with every 10000th one a slow call parking for 1ms
+ *   submit - one thread doing submit().get() in a loop, the round trip through a future
+ *
+ * usage: ExecutorComparison [threads...], default 1 2 4 8
+ */
+public class ExecutorComparison {
+
+    private static final int CAPACITY = 1 << 18;
+    private static final int TASKS = 1000000;
+    private static final int PINGS = 100000;
+    private static final int WARMUP = 10;
+    private static final int ROUNDS = 10;
+
+    interface Pool {
+        ExecutorService create(int threads);
+    }
+
+    static final Pool SPMC = new Pool() {
+        public ExecutorService create(int threads) {
+            return new SpmcExecutorService(threads, CAPACITY);
+        }
+        public String toString() {
+            return "spmc";
+        }
+    };
+
+    static final Pool MPMC = new Pool() {
+        public ExecutorService create(int threads) {
+            return new MpmcExecutorService(threads, CAPACITY);
+        }
+        public String toString() {
+            return "mpmc";
+        }
+    };
+
+    static final Pool MPMC_SINGLE = new Pool() {
+        public ExecutorService create(int threads) {
+            final MpmcExecutorService executor = new MpmcExecutorService(threads, CAPACITY);
+            executor.setBatchSize(1);
+            return executor;
+        }
+        public String toString() {
+            return "mpmc1";
+        }
+    };
+
+    static final Pool STRIPED = new Pool() {
+        public ExecutorService create(int threads) {
+            return new StripedExecutorService(threads, stripeCapacity(threads));
+        }
+        public String toString() {
+            return "striped";
+        }
+    };
+
+    // the experiment's stripes, each stuck behind its own slow tasks
+    static final Pool NO_STEAL = new Pool() {
+        public ExecutorService create(int threads) {
+            return new StripedExecutorService(threads, stripeCapacity(threads), false, true,
+                                              QueueExecutorService.ABORT,
+                                              QueueExecutorService.daemonThreadFactory("nosteal"),
+                                              IdleStrategy.PROGRESSIVE);
+        }
+        public String toString() {
+            return "nosteal";
+        }
+    };
+
+    static int stripeCapacity(int threads) {
+        return Math.max(2, Integer.highestOneBit(CAPACITY / threads));
+    }
+
+    static final Pool TPE = new Pool() {
+        public ExecutorService create(int threads) {
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(CAPACITY),
+                new RejectedExecutionHandler() {
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                        // block the submitter like SpmcExecutorService does
+                        try {
+                            if (executor.isShutdown()) throw new RejectedExecutionException();
+                            executor.getQueue().put(r);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new RejectedExecutionException(e);
+                        }
+                    }
+                });
+            executor.prestartAllCoreThreads();
+            return executor;
+        }
+        public String toString() {
+            return "tpe";
+        }
+    };
+
+    static double calculatePiFor(int slice, int nrOfIterations) {
+        double acc = 0.0;
+        for (int i = slice * nrOfIterations; i <= ((slice + 1) * nrOfIterations - 1); i++) {
+            acc += 4.0 * (1 - (i % 2) * 2) / (2 * i + 1);
+        }
+        return acc;
+    }
+
+    /**
+     * @return nanos to run every slice
+     */
+    static long pi(ExecutorService executor) {
+        final AtomicInteger latch = new AtomicInteger(TASKS);
+        final DoubleAdder result = new DoubleAdder();
+        final long start = System.nanoTime();
+        for (int i = 0; i < TASKS; i++) {
+            final int slice = i;
+            executor.execute(new Runnable() {
+                public void run() {
+                    result.add(calculatePiFor(slice, 100));
+                    latch.decrementAndGet();
+                }
+            });
+        }
+        await(latch);
+        final long took = System.nanoTime() - start;
+        if (Math.abs(result.sum() - Math.PI) > 1e-5) throw new AssertionError("pi came out as " + result.sum());
+        return took;
+    }
+
+    /**
+     * @return nanos to run every task
+     */
+    static long tiny(ExecutorService executor) {
+        final AtomicInteger latch = new AtomicInteger(TASKS);
+        final Runnable task = new Runnable() {
+            public void run() {
+                latch.decrementAndGet();
+            }
+        };
+        final long start = System.nanoTime();
+        for (int i = 0; i < TASKS; i++) {
+            executor.execute(task);
+        }
+        await(latch);
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * @return nanos to run every task, submitted 64 at a time
+     */
+    static long batch(ExecutorService executor) {
+        final AtomicInteger latch = new AtomicInteger(TASKS);
+        final Runnable task = new Runnable() {
+            public void run() {
+                latch.decrementAndGet();
+            }
+        };
+        final Runnable[] batch = new Runnable[64];
+        Arrays.fill(batch, task);
+        final long start = System.nanoTime();
+        for (int i = 0; i < TASKS; i += batch.length) {
+            if (executor instanceof QueueExecutorService) {
+                ((QueueExecutorService) executor).executeBatch(batch);
+            } else {
+                for (Runnable r : batch) {
+                    executor.execute(r);
+                }
+            }
+        }
+        await(latch);
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * @return nanos to run every task, a few of them slow
+     */
+    static long skewed(ExecutorService executor) {
+        final AtomicInteger latch = new AtomicInteger(TASKS);
+        final Runnable task = new Runnable() {
+            public void run() {
+                latch.decrementAndGet();
+            }
+        };
+        final Runnable slow = new Runnable() {
+            public void run() {
+                LockSupport.parkNanos(1000000);
+                latch.decrementAndGet();
+            }
+        };
+        final long start = System.nanoTime();
+        for (int i = 0; i < TASKS; i++) {
+            executor.execute(i % 10000 == 0 ? slow : task);
+        }
+        await(latch);
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * @return median nanos for one submit().get()
+     */
+    static long submit(ExecutorService executor) throws Exception {
+        final long[] took = new long[PINGS];
+        final Runnable task = new Runnable() {
+            public void run() {
+            }
+        };
+        for (int i = 0; i < PINGS; i++) {
+            final long start = System.nanoTime();
+            executor.submit(task).get();
+            took[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(took);
+        return took[PINGS / 2];
+    }
+
+    private static void await(AtomicInteger latch) {
+        while (latch.get() > 0) {
+            LockSupport.parkNanos(1000 * 50);
+        }
+    }
+
+    static String run(String workload, Pool pool, int threads) throws Exception {
+        final ExecutorService executor = pool.create(threads);
+        try {
+            long sum = 0;
+            long best = Long.MAX_VALUE;
+            for (int i = 0; i < WARMUP + ROUNDS; i++) {
+                final long took = "pi".equals(workload) ? pi(executor)
+                    : "tiny".equals(workload) ? tiny(executor)
+                    : "batch".equals(workload) ? batch(executor)
+                    : "skewed".equals(workload) ? skewed(executor) : submit(executor);
+                if (i >= WARMUP) {
+                    sum += took;
+                    best = Math.min(best, took);
+                }
+            }
+            final String unit = "submit".equals(workload) ? " us/op" : " ms";
+            final double scale = "submit".equals(workload) ? 1e3 : 1e6;
+            String stealing = "";
+            if (executor instanceof StripedExecutorService) {
+                final StripedExecutorService striped = (StripedExecutorService) executor;
+                stealing = String.format(" (stolen %.1f%%, imbalance %.2f)",
+                                         striped.getStealCount() * 100.0
+                                         / Math.max(1, striped.getStealCount() + striped.getLocalCount()),
+                                         striped.getImbalance());
+            }
+            return String.format("%-6s %-7s %d threads : mean %.1f best %.1f%s%s",
+                                 workload, pool, threads, sum / ROUNDS / scale, best / scale, unit, stealing);
+        } finally {
+            executor.shutdown();
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                throw new IllegalStateException(pool + " did not terminate");
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        final String[] threads = args.length > 0 ? args : new String[] { "1", "2", "4", "8" };
+        for (String workload : new String[] { "pi", "tiny", "batch", "skewed", "submit" }) {
+            for (String t : threads) {
+                // alternate, so none always runs on a warmer jvm
+                System.out.println(run(workload, SPMC, Integer.parseInt(t)));
+                System.out.println(run(workload, MPMC, Integer.parseInt(t)));
+                System.out.println(run(workload, MPMC_SINGLE, Integer.parseInt(t)));
+                System.out.println(run(workload, STRIPED, Integer.parseInt(t)));
+                System.out.println(run(workload, NO_STEAL, Integer.parseInt(t)));
+                System.out.println(run(workload, TPE, Integer.parseInt(t)));
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * CPU burnt by an idle pool against how long a task waits to be picked up, per IdleStrategy
+ *
+ * Each pool is left with nothing to do for a second and the CPU time of its workers over that
+ * second is read from ThreadMXBean, as a percentage of one core. Then single tasks are
+ * submitted after a short and a long gap, and the time from execute() to the task starting is
+ * the wakeup latency: after the short gap the workers are still spinning or parking, after
+ * the long one a blocking strategy has gone to sleep. A ThreadPoolExecutor, which always
+ * blocks on a condition, is there for reference.
+ *
+ * usage: IdleComparison [threads], default 4
+ */
+public class IdleComparison {
+
+    private static final long SHORT_GAP_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+    private static final long LONG_GAP_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final int WAKEUPS = 200;
+
+    static final Object[] STRATEGIES = {
+        IdleStrategy.BUSY_PARK,
+        IdleStrategy.backoff(100, 10, 1000, 1000000),
+        IdleStrategy.PROGRESSIVE,
+        IdleStrategy.BLOCKING,
+        "tpe",
+    };
+
+    /**
+     * Creates threads like daemonThreadFactory, and remembers them
+     */
+    static class RecordingThreadFactory implements ThreadFactory {
+        final List<Thread> threads = new ArrayList<Thread>();
+        private final ThreadFactory delegate = QueueExecutorService.daemonThreadFactory("idle");
+
+        public synchronized Thread newThread(Runnable r) {
+            final Thread t = delegate.newThread(r);
+            threads.add(t);
+            return t;
+        }
+
+        synchronized long cpuNanos(ThreadMXBean bean) {
+            long sum = 0;
+            for (Thread t : threads) {
+                sum += Math.max(0, bean.getThreadCpuTime(t.getId()));
+            }
+            return sum;
+        }
+    }
+
+    static ExecutorService create(Object strategy, int threads, RecordingThreadFactory factory) {
+        if (strategy instanceof IdleStrategy) {
+            return new MpmcExecutorService(threads, 1024, true, QueueExecutorService.ABORT, factory,
+                                           (IdleStrategy) strategy);
+        }
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), factory);
+        executor.prestartAllCoreThreads();
+        return executor;
+    }
+
+    /**
+     * @return sorted nanos from execute() to the task running, each after the given gap
+     */
+    static long[] wakeups(ExecutorService executor, long gapNanos) {
+        final long[] took = new long[WAKEUPS];
+        final AtomicLong started = new AtomicLong();
+        final Runnable task = new Runnable() {
+            public void run() {
+                started.set(System.nanoTime());
+            }
+        };
+        for (int i = 0; i < WAKEUPS; i++) {
+            sleep(gapNanos);
+            started.set(0);
+            final long submitted = System.nanoTime();
+            executor.execute(task);
+            long ran;
+            while ((ran = started.get()) == 0) {
+                Thread.yield();
+            }
+            took[i] = ran - submitted;
+        }
+        Arrays.sort(took);
+        return took;
+    }
+
+    private static void sleep(long nanos) {
+        final long deadline = System.nanoTime() + nanos;
+        long left;
+        while ((left = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(left);
+        }
+    }
+
+    static String run(Object strategy, int threads, ThreadMXBean bean) throws Exception {
+        final RecordingThreadFactory factory = new RecordingThreadFactory();
+        final ExecutorService executor = create(strategy, threads, factory);
+        try {
+            // warm up the hand off, then give the workers time to settle into their idle state
+            wakeups(executor, 0);
+            sleep(TimeUnit.MILLISECONDS.toNanos(200));
+            final long cpuBefore = factory.cpuNanos(bean);
+            final long before = System.nanoTime();
+            sleep(TimeUnit.SECONDS.toNanos(1));
+            final double cpu = (factory.cpuNanos(bean) - cpuBefore) * 100.0 / (System.nanoTime() - before);
+            final long[] soon = wakeups(executor, SHORT_GAP_NANOS);
+            final long[] later = wakeups(executor, LONG_GAP_NANOS);
+            return String.format("%-46s idle cpu %6.1f%%  wakeup after %dus p50 %7.1fus p99 %7.1fus"
+                                 + "  after %dms p50 %7.1fus p99 %7.1fus",
+                                 strategy, cpu,
+                                 TimeUnit.NANOSECONDS.toMicros(SHORT_GAP_NANOS),
+                                 soon[WAKEUPS / 2] / 1e3, soon[WAKEUPS * 99 / 100] / 1e3,
+                                 TimeUnit.NANOSECONDS.toMillis(LONG_GAP_NANOS),
+                                 later[WAKEUPS / 2] / 1e3, later[WAKEUPS * 99 / 100] / 1e3);
+        } finally {
+            executor.shutdown();
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                throw new IllegalStateException(strategy + " did not terminate");
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!bean.isThreadCpuTimeSupported()) {
+            throw new IllegalStateException("thread cpu time is not supported on this jvm");
+        }
+        bean.setThreadCpuTimeEnabled(true);
+        System.out.println(threads + " threads per pool");
+        for (Object strategy : STRATEGIES) {
+            System.out.println(run(strategy, threads, bean));
+        }
+    }
+}
@@ -0,0 +1,115 @@
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * What a QueueExecutorService worker does when it finds the queue empty
+ *
+ * The experiments all call parkNanos(1) in a loop, which on Linux sleeps for the timer slack,
+ * around 50us, and then looks again: an idle pool never stops waking up, and a task arriving
+ * during the sleep waits out the rest of it. The only knob they have is whether to call it at
+ * all (PutParkTakePark against PutParkTakeNoWait).
+ *
+ * A strategy is asked once per empty poll, with how many empty polls in a row there have been,
+ * and can spin, yield, park for a while, or say it is time to block. A blocked worker parks
+ * with no timeout until execute() wakes it, which costs the submitter an unpark, but only while
+ * some worker is actually blocked. The progressive strategy goes through each in turn, so a
+ * busy pool hands off with spinning latency and a pool left idle ends up costing nothing.
+ *
+ * Strategies are shared between the workers of a pool and hold no state.
+ */
+public abstract class IdleStrategy {
+
+    /** the experiments' parkNanos(1) loop, never blocks */
+    public static final IdleStrategy BUSY_PARK = new IdleStrategy() {
+        public boolean idle(int rounds) {
+            LockSupport.parkNanos(1);
+            return true;
+        }
+        public String toString() {
+            return "busy-park";
+        }
+    };
+
+    /** block as soon as the queue is empty */
+    public static final IdleStrategy BLOCKING = new IdleStrategy() {
+        public boolean idle(int rounds) {
+            return false;
+        }
+        public String toString() {
+            return "blocking";
+        }
+    };
+
+    /**
+     * 100 spins, 10 yields, then parks backing off from 1us to 1ms, and blocks after about 10ms
+     * with nothing to do
+     */
+    public static final IdleStrategy PROGRESSIVE = progressive(100, 10, 1000, 1000000, 20);
+
+    /**
+     * Called by a worker that found nothing to take
+     *
+     * @param rounds empty polls in a row, from 1; starts again after a task, or after blocking
+     * @return false if the worker should block until execute() or shutdown wakes it
+     */
+    public abstract boolean idle(int rounds);
+
+    /**
+     * Spins, then yields, then parks for minParkNanos doubling each time up to maxParkNanos,
+     * and keeps parking at that
+     */
+    public static IdleStrategy backoff(int spins, int yields, long minParkNanos, long maxParkNanos) {
+        return new Progressive(spins, yields, minParkNanos, maxParkNanos, -1);
+    }
+
+    /**
+     * As backoff(), but blocks once it has parked the given number of times
+     */
+    public static IdleStrategy progressive(int spins, int yields, long minParkNanos, long maxParkNanos, int parks) {
+        if (parks < 0) throw new IllegalArgumentException("parks must not be negative: " + parks);
+        return new Progressive(spins, yields, minParkNanos, maxParkNanos, parks);
+    }
+
+    private static class Progressive extends IdleStrategy {
+        private final int spins;
+        private final int yields;
+        private final long minParkNanos;
+        private final long maxParkNanos;
+        // -1 to never block
+        private final int parks;
+
+        Progressive(int spins, int yields, long minParkNanos, long maxParkNanos, int parks) {
+            if (spins < 0 || yields < 0 || minParkNanos < 1 || maxParkNanos < minParkNanos) {
+                throw new IllegalArgumentException("bad idle strategy: " + spins + " spins, " + yields + " yields, "
+                                                   + minParkNanos + "-" + maxParkNanos + "ns parks");
+            }
+            this.spins = spins;
+            this.yields = yields;
+            this.minParkNanos = minParkNanos;
+            this.maxParkNanos = maxParkNanos;
+            this.parks = parks;
+        }
+
+        public boolean idle(int rounds) {
+            if (rounds <= spins) {
+                return true;
+            }
+            if (rounds <= spins + yields) {
+                Thread.yield();
+                return true;
+            }
+            final int parked = rounds - spins - yields - 1;
+            if (parks >= 0 && parked >= parks) {
+                return false;
+            }
+            // shift no further than it takes to pass the cap, so it can't overflow
+            final int shift = Math.min(parked, 63 - Long.numberOfLeadingZeros(maxParkNanos / minParkNanos) + 1);
+            LockSupport.parkNanos(Math.min(minParkNanos << shift, maxParkNanos));
+            return true;
+        }
+
+        public String toString() {
+            return (parks < 0 ? "backoff(" : "progressive(") + spins + ", " + yields + ", " + minParkNanos + "ns, "
+                + maxParkNanos + "ns" + (parks < 0 ? ")" : ", " + parks + ")");
+        }
+    }
+}
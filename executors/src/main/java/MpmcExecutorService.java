@@ -0,0 +1,61 @@
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * An ExecutorService on MpmcQueue, for when many threads call execute()
+ *
+ * Submitters and workers each only contend on their own end of the queue, no lock anywhere.
+ * shutdown() closes the queue, so a submitter either got its task in before that or sees it
+ * rejected, and the workers are done once the head catches up with the closed tail.
+ */
+public class MpmcExecutorService extends QueueExecutorService {
+
+    private final MpmcQueue<Runnable> queue;
+
+    /**
+     * A pool that blocks the submitter while the queue is full, like the experiments do, and
+     * whose idle workers back off to blocking
+     */
+    public MpmcExecutorService(int threadCount, int capacity) {
+        this(threadCount, capacity, true, ABORT, daemonThreadFactory("mpmc"), IdleStrategy.PROGRESSIVE);
+    }
+
+    /**
+     * @param capacity queue size, a power of two
+     */
+    public MpmcExecutorService(int threadCount, int capacity, boolean blockWhenFull,
+                               RejectionPolicy rejection, ThreadFactory threadFactory, IdleStrategy idle) {
+        super(threadCount, blockWhenFull, rejection, threadFactory, idle);
+        this.queue = new MpmcQueue<Runnable>(capacity);
+        start();
+    }
+
+    protected int enqueue(Runnable task) {
+        if (queue.offer(task)) return QUEUED;
+        return queue.isClosed() ? CLOSED : FULL;
+    }
+
+    protected void close() {
+        queue.close();
+    }
+
+    protected int enqueue(Runnable[] tasks, int from, int count) {
+        final int queued = queue.offer(tasks, from, count);
+        return queued > 0 || !queue.isClosed() ? queued : -1;
+    }
+
+    protected Runnable poll() {
+        return queue.poll();
+    }
+
+    protected int poll(int worker, Runnable[] batch, int max) {
+        return queue.drain(batch, max);
+    }
+
+    protected boolean isDrained() {
+        return queue.isDrained();
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+}
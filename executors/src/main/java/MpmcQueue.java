@@ -0,0 +1,232 @@
+import java.util.AbstractQueue;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded multi producer, multi consumer ring buffer queue, in the style of SpmcQueue
+ *
+ * With several producers the writer cursor can't be a plain field any more, and a producer
+ * that has claimed a slot may not have filled it yet when the next one has, so every slot gets
+ * its own sequence number saying whose turn it is (Dmitry Vyukov's bounded MPMC queue):
+ *
+ *   sequence == position           the slot is free for the producer claiming position
+ *   sequence == position + 1       the slot holds the element for the consumer at position
+ *   sequence == position + capacity  taken, free again for the producer one lap later
+ *
+ * Producers CAS the padded tail to claim a position, write the element then publish it with an
+ * ordered write of the slot sequence; consumers do the same with the padded head. Nobody waits
+ * on anybody else's CAS, only on the one slot they want.
+ *
+ * drain() and offer() of an array claim a run of slots with one CAS, as many in a row as are
+ * ready, instead of one CAS per element.
+ *
+ * The top bit of the tail marks the queue closed: offer() fails from then on, and once the
+ * head has caught up with the tail every element ever accepted has been taken.
+ *
+ * iterator() is weakly consistent: it walks the slots between the head and tail it saw when
+ * created, skipping any taken meanwhile, and never sees elements offered after that. It can't
+ * remove, so neither can remove(Object).
+ */
+public class MpmcQueue<E> extends AbstractQueue<E> {
+
+    private static final long CLOSED = Long.MIN_VALUE;
+
+    private final Object[] buffer;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new PaddedAtomicLong(0);
+    private final AtomicLong head = new PaddedAtomicLong(0);
+
+    /**
+     * @param capacity a power of two
+     */
+    public MpmcQueue(int capacity) {
+        if (capacity < 2 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        this.buffer = new Object[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        this.mask = capacity - 1;
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * @return false if the queue is full or closed
+     */
+    public boolean offer(E e) {
+        if (e == null) throw new NullPointerException();
+        while (true) {
+            final long position = tail.get();
+            if (position < 0) return false;
+            final int slot = (int) position & mask;
+            final long sequence = sequences.get(slot);
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    buffer[slot] = e;
+                    sequences.lazySet(slot, position + 1);
+                    return true;
+                }
+            } else if (sequence < position) {
+                // the consumer a lap behind hasn't taken it yet
+                return false;
+            }
+            // else another producer got here first, go again
+        }
+    }
+
+    /**
+     * Offers elements[from] to elements[from + count - 1] in order, as many as there is room for
+     *
+     * @return how many went in; 0 if the queue is full or closed
+     */
+    public int offer(E[] elements, int from, int count) {
+        for (int i = 0; i < count; i++) {
+            if (elements[from + i] == null) throw new NullPointerException();
+        }
+        while (true) {
+            final long position = tail.get();
+            if (position < 0) return 0;
+            int free = 0;
+            while (free < count && sequences.get((int) (position + free) & mask) == position + free) {
+                free++;
+            }
+            if (free == 0) {
+                // full, unless another producer just took the slot
+                if (sequences.get((int) position & mask) < position) return 0;
+            } else if (tail.compareAndSet(position, position + free)) {
+                for (int i = 0; i < free; i++) {
+                    final int slot = (int) (position + i) & mask;
+                    buffer[slot] = elements[from + i];
+                    sequences.lazySet(slot, position + i + 1);
+                }
+                return free;
+            }
+        }
+    }
+
+    /**
+     * Takes up to max elements, oldest first, into the start of the array
+     *
+     * @return how many were taken
+     */
+    @SuppressWarnings("unchecked")
+    public int drain(E[] into, int max) {
+        while (true) {
+            final long position = head.get();
+            int ready = 0;
+            while (ready < max && sequences.get((int) (position + ready) & mask) == position + ready + 1) {
+                ready++;
+            }
+            if (ready == 0) {
+                // empty, unless another consumer just took the slot
+                if (sequences.get((int) position & mask) < position + 1) return 0;
+            } else if (head.compareAndSet(position, position + ready)) {
+                for (int i = 0; i < ready; i++) {
+                    final int slot = (int) (position + i) & mask;
+                    into[i] = (E) buffer[slot];
+                    buffer[slot] = null;
+                    sequences.lazySet(slot, position + i + mask + 1);
+                }
+                return ready;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        while (true) {
+            final long position = head.get();
+            final int slot = (int) position & mask;
+            final long sequence = sequences.get(slot);
+            if (sequence == position + 1) {
+                if (head.compareAndSet(position, position + 1)) {
+                    final E e = (E) buffer[slot];
+                    buffer[slot] = null;
+                    sequences.lazySet(slot, position + mask + 1);
+                    return e;
+                }
+            } else if (sequence < position + 1) {
+                // empty, or the producer that claimed it hasn't published yet
+                return null;
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public E peek() {
+        final long position = head.get();
+        final int slot = (int) position & mask;
+        return sequences.get(slot) == position + 1 ? (E) buffer[slot] : null;
+    }
+
+    /**
+     * Makes every later offer() fail; offers that had already claimed a slot still complete
+     */
+    public void close() {
+        while (true) {
+            final long position = tail.get();
+            if (position < 0 || tail.compareAndSet(position, position | CLOSED)) return;
+        }
+    }
+
+    public boolean isClosed() {
+        return tail.get() < 0;
+    }
+
+    /**
+     * @return true when every claimed slot has been taken; claimed slots still being written
+     *         count as not drained
+     */
+    public boolean isDrained() {
+        return head.get() == (tail.get() & ~CLOSED);
+    }
+
+    /**
+     * @return a snapshot; includes claimed slots still being written
+     */
+    public int size() {
+        final long size = (tail.get() & ~CLOSED) - head.get();
+        return (int) Math.max(0, Math.min(size, mask + 1));
+    }
+
+    public Iterator<E> iterator() {
+        return new Iterator<E>() {
+            private long position = head.get();
+            private final long end = tail.get() & ~CLOSED;
+            private E next = advance();
+
+            @SuppressWarnings("unchecked")
+            private E advance() {
+                while (position < end) {
+                    final long p = position++;
+                    final int slot = (int) p & mask;
+                    // taken already, or claimed but not written yet
+                    if (sequences.get(slot) != p + 1) continue;
+                    final Object e = buffer[slot];
+                    // and not taken while we read it
+                    if (e != null && sequences.get(slot) == p + 1) return (E) e;
+                }
+                return null;
+            }
+
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            public E next() {
+                if (next == null) throw new NoSuchElementException();
+                final E e = next;
+                next = advance();
+                return e;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
@@ -0,0 +1,375 @@
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Checks MpmcQueue neither loses nor duplicates anything under contention
+ *
+ * First, that iterating a queue that has wrapped sees what is in it, oldest first.
+ * Producers each offer a disjoint range of numbers while consumers poll; every number taken is
+ * ticked off in a bitmap, and a number seen twice or never is a failure. A small queue keeps it
+ * wrapping, and full / empty, all the time. Then again with producers offering and consumers
+ * draining runs of elements. Then the same through MpmcExecutorService, half the submitters
+ * using executeBatch(), with shutdown() racing them once a quarter of the tasks are in: every
+ * task it accepted must run exactly once. Then racing shutdownNow() instead: every task it
+ * accepted must either run or come back from shutdownNow(), and not both, and once it has
+ * been called no worker may start more than the one task it had already taken; and, on its
+ * own, a batch claimed behind a running task must come back from shutdownNow() unrun. Last, short bursts
+ * through a pool whose workers block as soon as they are idle, where a task that sits in the
+ * queue with every worker asleep is a lost wakeup.
+ *
+ * usage: MpmcQueueStress [producers] [consumers] [rounds], default 4 4 10
+ */
+public class MpmcQueueStress {
+
+    private static final int PER_PRODUCER = 1000000;
+
+    // the pool being shut down now; tasks that start once it is shut down are counted
+    private static volatile QueueExecutorService stopping;
+    private static final AtomicLong late = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        final int producers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        final int consumers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        final int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        iteration();
+        claimedBatch();
+        for (int round = 0; round < rounds; round++) {
+            queue(producers, consumers, 64);
+            batches(producers, consumers, 64);
+            executor(producers, consumers, 64, false);
+            executor(producers, consumers, 64, true);
+            wakeups(producers, consumers);
+        }
+        System.out.println("ok");
+    }
+
+    static void iteration() {
+        final MpmcQueue<Integer> queue = new MpmcQueue<Integer>(8);
+        for (int i = 0; i < 8; i++) {
+            queue.offer(i);
+        }
+        for (int i = 0; i < 3; i++) {
+            queue.poll();
+        }
+        for (int i = 8; i < 11; i++) {
+            queue.offer(i);
+        }
+        final String expected = "[3, 4, 5, 6, 7, 8, 9, 10]";
+        if (!expected.equals(queue.toString())) throw new AssertionError("iterated " + queue + ", expected " + expected);
+        if (!queue.contains(10) || queue.contains(2)) throw new AssertionError("contains() disagrees with " + queue);
+        if (queue.toArray().length != 8) throw new AssertionError("toArray() disagrees with " + queue);
+    }
+
+    static void claimedBatch() throws Exception {
+        final MpmcExecutorService executor = new MpmcExecutorService(1, 64, true, QueueExecutorService.ABORT,
+            QueueExecutorService.daemonThreadFactory("claimed"), IdleStrategy.PROGRESSIVE);
+        final CountDownLatch running = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicLong ran = new AtomicLong();
+        final Runnable[] batch = new Runnable[10];
+        batch[0] = new Runnable() {
+            public void run() {
+                running.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    // shutdownNow()
+                }
+            }
+        };
+        for (int i = 1; i < batch.length; i++) {
+            batch[i] = new Runnable() {
+                public void run() {
+                    ran.incrementAndGet();
+                }
+            };
+        }
+        // let the worker go to sleep, so it wakes to the whole batch and claims it in one go
+        Thread.sleep(50);
+        executor.executeBatch(batch);
+        running.await();
+        final List<Runnable> pending = executor.shutdownNow();
+        release.countDown();
+        if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+            throw new AssertionError("executor did not terminate: " + executor);
+        }
+        if (ran.get() != 0) throw new AssertionError(ran.get() + " task(s) of a claimed batch ran after shutdownNow()");
+        if (pending.size() != batch.length - 1) {
+            throw new AssertionError("shutdownNow() returned " + pending.size() + " of " + (batch.length - 1) + " unstarted tasks");
+        }
+    }
+
+    static void queue(final int producers, final int consumers, int capacity) throws Exception {
+        final MpmcQueue<Long> queue = new MpmcQueue<Long>(capacity);
+        final int total = producers * PER_PRODUCER;
+        final AtomicLongArray seen = new AtomicLongArray((total + 63) / 64);
+        final AtomicLong taken = new AtomicLong();
+        final AtomicLong duplicates = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(producers + consumers);
+        final long start = System.nanoTime();
+        for (int p = 0; p < producers; p++) {
+            final long from = (long) p * PER_PRODUCER;
+            new Thread(new Runnable() {
+                public void run() {
+                    for (long i = from; i < from + PER_PRODUCER; i++) {
+                        final Long value = i;
+                        while (!queue.offer(value)) {
+                            Thread.yield();
+                        }
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        for (int c = 0; c < consumers; c++) {
+            new Thread(new Runnable() {
+                public void run() {
+                    while (taken.get() < total) {
+                        final Long value = queue.poll();
+                        if (value == null) {
+                            Thread.yield();
+                            continue;
+                        }
+                        if (!tick(seen, value)) duplicates.incrementAndGet();
+                        taken.incrementAndGet();
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        check("queue", seen, total, duplicates.get(), queue.size());
+        System.out.println(String.format("queue    %d producers %d consumers: %d in %d ms",
+                                         producers, consumers, total, (System.nanoTime() - start) / 1000000));
+    }
+
+    static void batches(final int producers, final int consumers, int capacity) throws Exception {
+        final MpmcQueue<Long> queue = new MpmcQueue<Long>(capacity);
+        final int total = producers * PER_PRODUCER;
+        final AtomicLongArray seen = new AtomicLongArray((total + 63) / 64);
+        final AtomicLong taken = new AtomicLong();
+        final AtomicLong duplicates = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(producers + consumers);
+        final long start = System.nanoTime();
+        for (int p = 0; p < producers; p++) {
+            final long from = (long) p * PER_PRODUCER;
+            new Thread(new Runnable() {
+                public void run() {
+                    final Long[] run = new Long[16];
+                    long i = from;
+                    while (i < from + PER_PRODUCER) {
+                        // runs of 1 to 16, so some fit and some are cut short by a full queue
+                        final int size = (int) Math.min(1 + (i & 15), from + PER_PRODUCER - i);
+                        for (int j = 0; j < size; j++) {
+                            run[j] = i + j;
+                        }
+                        int offered = 0;
+                        while (offered < size) {
+                            final int n = queue.offer(run, offered, size - offered);
+                            if (n == 0) Thread.yield();
+                            offered += n;
+                        }
+                        i += size;
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        for (int c = 0; c < consumers; c++) {
+            final int max = 1 + c * 5 % 16;
+            new Thread(new Runnable() {
+                public void run() {
+                    final Long[] into = new Long[max];
+                    while (taken.get() < total) {
+                        final int n = queue.drain(into, max);
+                        if (n == 0) {
+                            Thread.yield();
+                            continue;
+                        }
+                        for (int j = 0; j < n; j++) {
+                            if (!tick(seen, into[j])) duplicates.incrementAndGet();
+                        }
+                        taken.addAndGet(n);
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        check("batches", seen, total, duplicates.get(), queue.size());
+        System.out.println(String.format("batches  %d producers %d consumers: %d in %d ms",
+                                         producers, consumers, total, (System.nanoTime() - start) / 1000000));
+    }
+
+    static void executor(final int producers, final int consumers, int capacity, boolean now) throws Exception {
+        final int total = producers * PER_PRODUCER;
+        final AtomicLongArray seen = new AtomicLongArray((total + 63) / 64);
+        final AtomicLongArray accepted = new AtomicLongArray((total + 63) / 64);
+        final AtomicLong duplicates = new AtomicLong();
+        final AtomicLong submitted = new AtomicLong();
+        // ticked before it is submitted, unticked here if it turns out to be rejected
+        final QueueExecutorService.RejectionPolicy untick = new QueueExecutorService.RejectionPolicy() {
+            public void rejected(Runnable task, QueueExecutorService executor) {
+                untick(accepted, ((Task) task).value);
+            }
+        };
+        final MpmcExecutorService executor = new MpmcExecutorService(consumers, capacity, true, untick,
+            QueueExecutorService.daemonThreadFactory("stress"), IdleStrategy.PROGRESSIVE);
+        final CountDownLatch done = new CountDownLatch(producers);
+        stopping = now ? executor : null;
+        late.set(0);
+        for (int p = 0; p < producers; p++) {
+            final long from = (long) p * PER_PRODUCER;
+            final boolean batched = (p & 1) == 1;
+            new Thread(new Runnable() {
+                public void run() {
+                    final Runnable[] batch = new Runnable[8];
+                    for (long i = from; i < from + PER_PRODUCER; i++) {
+                        tick(accepted, i);
+                        if (((i - from) & 1023) == 0) submitted.addAndGet(1024);
+                        final Task task = new Task(i, seen, duplicates);
+                        if (!batched) {
+                            executor.execute(task);
+                            continue;
+                        }
+                        batch[(int) (i - from) & 7] = task;
+                        if (((i - from) & 7) == 7) executor.executeBatch(batch);
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        // let a quarter of them in, then shut down under the feet of the rest
+        while (submitted.get() < total / 4 && done.getCount() > 0) {
+            Thread.sleep(1);
+        }
+        final AtomicLongArray returned = new AtomicLongArray(seen.length());
+        if (now) {
+            final List<Runnable> pending = executor.shutdownNow();
+            for (Runnable task : pending) {
+                if (!tick(returned, ((Task) task).value)) throw new AssertionError("shutdownNow() returned a task twice");
+            }
+        } else {
+            executor.shutdown();
+        }
+        done.await();
+        if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+            throw new AssertionError("executor did not terminate: " + executor);
+        }
+        long ran = 0;
+        long back = 0;
+        for (int i = 0; i < seen.length(); i++) {
+            if ((seen.get(i) & returned.get(i)) != 0) throw new AssertionError("tasks both ran and returned around " + i * 64);
+            if ((seen.get(i) | returned.get(i)) != accepted.get(i)) {
+                throw new AssertionError("accepted tasks neither ran nor returned around " + i * 64);
+            }
+            ran += Long.bitCount(seen.get(i));
+            back += Long.bitCount(returned.get(i));
+        }
+        if (duplicates.get() != 0) throw new AssertionError("executor ran " + duplicates.get() + " task(s) twice");
+        if (late.get() > consumers) throw new AssertionError(late.get() + " task(s) started after shutdownNow()");
+        System.out.println(String.format("executor %d producers %d workers: accepted and ran %d, returned %d of %d before %s",
+                                         producers, consumers, ran, back, total, now ? "shutdownNow" : "shutdown"));
+    }
+
+    static void wakeups(final int producers, int consumers) throws Exception {
+        final int bursts = 20000;
+        final MpmcExecutorService executor = new MpmcExecutorService(consumers, 64, true, QueueExecutorService.ABORT,
+            QueueExecutorService.daemonThreadFactory("wakeups"), IdleStrategy.BLOCKING);
+        final AtomicLong lost = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(producers);
+        final long start = System.nanoTime();
+        for (int p = 0; p < producers; p++) {
+            final int seed = p;
+            new Thread(new Runnable() {
+                public void run() {
+                    final AtomicLong ran = new AtomicLong();
+                    final Runnable task = new Runnable() {
+                        public void run() {
+                            ran.incrementAndGet();
+                        }
+                    };
+                    long submitted = 0;
+                    for (int b = 0; b < bursts && lost.get() == 0; b++) {
+                        // 1 to 8 tasks, then wait for them so the workers go back to sleep
+                        final int size = 1 + ((b * 31 + seed) & 7);
+                        for (int i = 0; i < size; i++) {
+                            executor.execute(task);
+                        }
+                        submitted += size;
+                        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+                        while (ran.get() < submitted) {
+                            if (System.nanoTime() > deadline) {
+                                lost.incrementAndGet();
+                                break;
+                            }
+                            Thread.yield();
+                        }
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        executor.shutdown();
+        if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+            throw new AssertionError("executor did not terminate: " + executor);
+        }
+        if (lost.get() != 0) throw new AssertionError(lost.get() + " burst(s) never ran, lost wakeup");
+        System.out.println(String.format("wakeups  %d producers %d workers: %d bursts in %d ms",
+                                         producers, consumers, producers * bursts, (System.nanoTime() - start) / 1000000));
+    }
+
+    private static class Task implements Runnable {
+        final long value;
+        final AtomicLongArray seen;
+        final AtomicLong duplicates;
+
+        Task(long value, AtomicLongArray seen, AtomicLong duplicates) {
+            this.value = value;
+            this.seen = seen;
+            this.duplicates = duplicates;
+        }
+
+        public void run() {
+            final QueueExecutorService executor = stopping;
+            if (executor != null && executor.isShutdown()) late.incrementAndGet();
+            if (!tick(seen, value)) duplicates.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return false if value was already ticked
+     */
+    static boolean tick(AtomicLongArray bits, long value) {
+        final int word = (int) (value >>> 6);
+        final long bit = 1L << (value & 63);
+        while (true) {
+            final long current = bits.get(word);
+            if ((current & bit) != 0) return false;
+            if (bits.compareAndSet(word, current, current | bit)) return true;
+        }
+    }
+
+    static void untick(AtomicLongArray bits, long value) {
+        final int word = (int) (value >>> 6);
+        final long bit = 1L << (value & 63);
+        while (true) {
+            final long current = bits.get(word);
+            if (bits.compareAndSet(word, current, current & ~bit)) return;
+        }
+    }
+
+    static void check(String what, AtomicLongArray seen, int total, long duplicates, int left) {
+        long count = 0;
+        for (int i = 0; i < seen.length(); i++) {
+            count += Long.bitCount(seen.get(i));
+        }
+        if (duplicates != 0) throw new AssertionError(what + " handed out " + duplicates + " element(s) twice");
+        if (count != total) throw new AssertionError(what + " lost " + (total - count) + " element(s)");
+        if (left != 0) throw new AssertionError(what + " has " + left + " element(s) left over");
+    }
+}
@@ -0,0 +1,141 @@
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedTransferQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jctools.queues.MpmcArrayQueue;
+
+/**
+ * Throughput of MpmcQueue against LinkedTransferQueue and JCTools MpmcArrayQueue
+ *
+ * P producers offer and C consumers poll the same number of elements through each queue, all
+ * threads spinning with Thread.yield() when full or empty, and the time until the last one is
+ * taken is reported. The bounded queues get the same capacity; LinkedTransferQueue is
+ * unbounded, so it never pushes back on the producers. Each run is repeated for warmup first.
+ *
+ * usage: QueueBenchmark [producers:consumers...], default 1:1 2:2 4:4 8:8
+ */
+public class QueueBenchmark {
+
+    private static final int CAPACITY = 1 << 14;
+    private static final int ELEMENTS = 10000000;
+    private static final int WARMUP = 5;
+    private static final int ROUNDS = 5;
+
+    interface Factory {
+        Queue<Integer> create();
+    }
+
+    static final Factory[] QUEUES = {
+        new Factory() {
+            public Queue<Integer> create() {
+                return new MpmcQueue<Integer>(CAPACITY);
+            }
+            public String toString() {
+                return "MpmcQueue";
+            }
+        },
+        new Factory() {
+            public Queue<Integer> create() {
+                return new MpmcArrayQueue<Integer>(CAPACITY);
+            }
+            public String toString() {
+                return "MpmcArrayQueue";
+            }
+        },
+        new Factory() {
+            public Queue<Integer> create() {
+                return new LinkedTransferQueue<Integer>();
+            }
+            public String toString() {
+                return "LinkedTransferQueue";
+            }
+        },
+    };
+
+    /**
+     * @return nanos to move every element through
+     */
+    static long run(final Queue<Integer> queue, int producers, int consumers) throws InterruptedException {
+        final int perProducer = ELEMENTS / producers;
+        final int total = perProducer * producers;
+        final AtomicLong taken = new AtomicLong();
+        final CountDownLatch ready = new CountDownLatch(producers + consumers);
+        final CountDownLatch go = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(producers + consumers);
+        // the same boxed value every time, so the producers aren't timing the allocator
+        final Integer element = 42;
+        for (int p = 0; p < producers; p++) {
+            new Thread(new Runnable() {
+                public void run() {
+                    ready.countDown();
+                    await(go);
+                    for (int i = 0; i < perProducer; i++) {
+                        while (!queue.offer(element)) {
+                            Thread.yield();
+                        }
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        for (int c = 0; c < consumers; c++) {
+            new Thread(new Runnable() {
+                public void run() {
+                    ready.countDown();
+                    await(go);
+                    long mine = 0;
+                    while (taken.get() < total) {
+                        if (queue.poll() != null) {
+                            // batch the shared count, it would otherwise be the bottleneck
+                            if (++mine == 256) {
+                                taken.addAndGet(mine);
+                                mine = 0;
+                            }
+                        } else {
+                            if (mine > 0) {
+                                taken.addAndGet(mine);
+                                mine = 0;
+                            }
+                            Thread.yield();
+                        }
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        ready.await();
+        final long start = System.nanoTime();
+        go.countDown();
+        done.await();
+        return System.nanoTime() - start;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        final String[] shapes = args.length > 0 ? args : new String[] { "1:1", "2:2", "4:4", "8:8" };
+        for (String shape : shapes) {
+            final int producers = Integer.parseInt(shape.substring(0, shape.indexOf(':')));
+            final int consumers = Integer.parseInt(shape.substring(shape.indexOf(':') + 1));
+            for (Factory factory : QUEUES) {
+                long best = Long.MAX_VALUE;
+                long sum = 0;
+                for (int i = 0; i < WARMUP + ROUNDS; i++) {
+                    final long took = run(factory.create(), producers, consumers);
+                    if (i >= WARMUP) {
+                        sum += took;
+                        best = Math.min(best, took);
+                    }
+                }
+                System.out.println(String.format("%-20s %d:%d mean %.1f best %.1f Mops/s", factory, producers, consumers,
+                                                 ELEMENTS * 1e3 / (sum / ROUNDS), ELEMENTS * 1e3 / best));
+            }
+        }
+    }
+}
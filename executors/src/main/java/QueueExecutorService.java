@@ -0,0 +1,478 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The ExecutorService lifecycle shared by the executors built on our own queues
+ *
+ * A fixed set of workers take tasks from a queue the subclass provides. submit / invokeAll /
+ * invokeAny come from AbstractExecutorService, wrapping tasks in a FutureTask before they go
+ * through execute(). shutdown() stops accepting and lets the workers drain what is queued,
+ * shutdownNow() takes the queued tasks back and interrupts the workers. A task that can't be
+ * queued, because the queue is full or the executor is shut down, goes to the RejectionPolicy.
+ *
+ * The subclass owns the producer side: enqueue() must refuse everything once close() has
+ * returned, which is what lets a shut down executor know nothing more is on its way. A
+ * subclass that queues a task only one worker will take says so with queuedFor(worker), and
+ * that is the worker execute() wakes.
+ *
+ * What a worker does when the queue is empty is up to its IdleStrategy. One that blocks marks
+ * the worker asleep, looks at the queue once more and parks until execute() unparks it;
+ * execute() checks a count of sleeping workers after every task it queues, so while none are
+ * asleep a submitter pays one volatile read for it.
+ *
+ * Workers take tasks in batches of up to getBatchSize(), claimed from the queue together where
+ * the subclass can, and run them in a row; executeBatch() is the same on the submitting side.
+ * A worker takes each task of its batch back out with getAndSet() before running it, so
+ * shutdownNow() can take back the ones it hasn't started; a worker claiming a batch flags it
+ * first, and shutdownNow() waits for that to finish before looking. A worker stops after the
+ * task it is running, and claims nothing more, once shutdownNow() has been called.
+ */
+public abstract class QueueExecutorService extends AbstractExecutorService {
+
+    /**
+     * What execute() does with a task it can't queue
+     */
+    public interface RejectionPolicy {
+        void rejected(Runnable task, QueueExecutorService executor);
+    }
+
+    /** throw RejectedExecutionException */
+    public static final RejectionPolicy ABORT = new RejectionPolicy() {
+        public void rejected(Runnable task, QueueExecutorService executor) {
+            throw new RejectedExecutionException("task " + task + " rejected from " + executor);
+        }
+    };
+
+    /** run the task on the submitting thread, unless shut down */
+    public static final RejectionPolicy CALLER_RUNS = new RejectionPolicy() {
+        public void rejected(Runnable task, QueueExecutorService executor) {
+            if (!executor.isShutdown()) {
+                task.run();
+            }
+        }
+    };
+
+    /** drop the task */
+    public static final RejectionPolicy DISCARD = new RejectionPolicy() {
+        public void rejected(Runnable task, QueueExecutorService executor) {
+        }
+    };
+
+    /** drop the oldest queued task and try again, unless shut down */
+    public static final RejectionPolicy DISCARD_OLDEST = new RejectionPolicy() {
+        public void rejected(Runnable task, QueueExecutorService executor) {
+            if (!executor.isShutdown()) {
+                executor.poll();
+                executor.execute(task);
+            }
+        }
+    };
+
+    /** enqueue() results */
+    protected static final int QUEUED = 0;
+    protected static final int FULL = 1;
+    protected static final int CLOSED = 2;
+
+    /**
+     * @return the enqueue() result for a task queued where only the given worker takes it
+     */
+    protected static int queuedFor(int worker) {
+        return -1 - worker;
+    }
+
+    private static final int RUNNING = 0;
+    private static final int SHUTDOWN = 1;
+    private static final int STOP = 2;
+
+    /** the most tasks a worker takes at once */
+    public static final int MAX_BATCH = 256;
+
+    private static final AtomicLong POOLS = new AtomicLong();
+
+    private final AtomicInteger state = new AtomicInteger(RUNNING);
+    // set once close() has returned; from then on the queue only shrinks
+    private volatile boolean closed;
+    private final boolean blockWhenFull;
+    private final RejectionPolicy rejection;
+    private final ThreadFactory threadFactory;
+    private final IdleStrategy idle;
+    private volatile int batchSize = 32;
+    private final Thread[] threads;
+    private final Worker[] workers;
+    private final CountDownLatch terminated;
+    // 1 for a worker that is blocked, or about to be; whoever swaps it back to 0 unparks it
+    private final AtomicIntegerArray asleep;
+    private final AtomicLong sleepers = new PaddedAtomicLong(0);
+    // where execute() starts looking for a sleeper, so wakeups go round the pool; racy, only a hint
+    private int nextToWake;
+
+    /**
+     * @param blockWhenFull if true execute() waits for space, and the policy is only used once
+     *                      shut down; otherwise a full queue goes straight to the policy
+     */
+    protected QueueExecutorService(int threadCount, boolean blockWhenFull, RejectionPolicy rejection,
+                                   ThreadFactory threadFactory, IdleStrategy idle) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("need at least one thread: " + threadCount);
+        }
+        this.blockWhenFull = blockWhenFull;
+        this.rejection = rejection;
+        this.threadFactory = threadFactory;
+        this.idle = idle;
+        this.asleep = new AtomicIntegerArray(threadCount);
+        this.terminated = new CountDownLatch(threadCount);
+        this.threads = new Thread[threadCount];
+        this.workers = new Worker[threadCount];
+    }
+
+    /**
+     * Starts the workers; the subclass calls this last in its constructor, once the queue is
+     * there to take from
+     */
+    protected void start() {
+        for (int i = 0; i < threads.length; i++) {
+            workers[i] = new Worker(i);
+            threads[i] = threadFactory.newThread(workers[i]);
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].start();
+        }
+    }
+
+    /**
+     * @return QUEUED, queuedFor(worker), FULL, or CLOSED if close() has been called
+     */
+    protected abstract int enqueue(Runnable task);
+
+    /**
+     * Stops enqueue() accepting anything; when this returns, no enqueue() is still in progress
+     */
+    protected abstract void close();
+
+    /**
+     * @return the next task, or null if there is none right now
+     */
+    protected abstract Runnable poll();
+
+    /**
+     * @return true if nothing is queued and, once closed, nothing more can arrive
+     */
+    protected abstract boolean isDrained();
+
+    /**
+     * Queues tasks[from] to tasks[from + count - 1] in order, as many as fit
+     *
+     * @return how many were queued, -1 if close() has been called; by default one at a time
+     *         with enqueue(task)
+     */
+    protected int enqueue(Runnable[] tasks, int from, int count) {
+        for (int i = 0; i < count; i++) {
+            final int result = enqueue(tasks[from + i]);
+            if (result != QUEUED) return i > 0 || result == FULL ? i : -1;
+        }
+        return count;
+    }
+
+    /**
+     * Takes up to max tasks for this worker into the start of batch
+     *
+     * @return how many; by default the one from poll(worker)
+     */
+    protected int poll(int worker, Runnable[] batch, int max) {
+        final Runnable task = poll(worker);
+        if (task == null) return 0;
+        batch[0] = task;
+        return 1;
+    }
+
+    /**
+     * @return the next task for this worker to run, or null; by default the same as poll()
+     */
+    protected Runnable poll(int worker) {
+        return poll();
+    }
+
+    /**
+     * What a worker going to sleep checks last, and must see anything queued that it could run;
+     * by default anything queued at all
+     */
+    protected boolean hasWork(int worker) {
+        return !isDrained();
+    }
+
+    /**
+     * @return tasks queued but not yet taken by a worker; a snapshot
+     */
+    public abstract int getQueueSize();
+
+    static ThreadFactory daemonThreadFactory(final String prefix) {
+        final long pool = POOLS.incrementAndGet();
+        final AtomicLong count = new AtomicLong();
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                final Thread t = new Thread(r, prefix + "-" + pool + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    public void execute(Runnable task) {
+        if (task == null) throw new NullPointerException();
+        while (true) {
+            final int result = enqueue(task);
+            if (result == QUEUED) {
+                if (sleepers.get() > 0) wakeOne();
+                return;
+            }
+            if (result < 0) {
+                signal(-1 - result);
+                return;
+            }
+            if (result == CLOSED || !blockWhenFull) break;
+            LockSupport.parkNanos(1);
+        }
+        rejection.rejected(task, this);
+    }
+
+    /**
+     * Queues every task, in order, as execute() would each of them, claiming room for as many at
+     * a time as fit; a task that can't be queued goes to the RejectionPolicy and the rest carry on
+     */
+    public void executeBatch(Runnable[] tasks) {
+        for (Runnable task : tasks) {
+            if (task == null) throw new NullPointerException();
+        }
+        int from = 0;
+        while (from < tasks.length) {
+            final int queued = enqueue(tasks, from, tasks.length - from);
+            if (queued > 0) {
+                from += queued;
+                for (int i = 0; i < queued && sleepers.get() > 0; i++) {
+                    wakeOne();
+                }
+            } else if (queued == 0 && blockWhenFull) {
+                LockSupport.parkNanos(1);
+            } else {
+                rejection.rejected(tasks[from++], this);
+            }
+        }
+    }
+
+    public void shutdown() {
+        state.compareAndSet(RUNNING, SHUTDOWN);
+        close();
+        closed = true;
+        wakeAll();
+    }
+
+    public List<Runnable> shutdownNow() {
+        state.set(STOP);
+        close();
+        closed = true;
+        wakeAll();
+        final List<Runnable> pending = new ArrayList<Runnable>();
+        // claimed batches first, they are older than anything still queued
+        for (Worker w : workers) {
+            w.giveBack(pending);
+        }
+        Runnable r;
+        while ((r = poll()) != null || !isDrained()) {
+            if (r != null) pending.add(r);
+        }
+        for (Thread t : threads) {
+            t.interrupt();
+        }
+        return pending;
+    }
+
+    /**
+     * @return workers blocked waiting for a task; a snapshot
+     */
+    public int getSleepingCount() {
+        return (int) sleepers.get();
+    }
+
+    /**
+     * @param batchSize the most tasks a worker takes at once, 1 to MAX_BATCH; 1 for one at a
+     *                  time, so a long task can't hold up the ones claimed with it
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1 || batchSize > MAX_BATCH) {
+            throw new IllegalArgumentException("batch size must be 1 to " + MAX_BATCH + ": " + batchSize);
+        }
+        this.batchSize = batchSize;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public IdleStrategy getIdleStrategy() {
+        return idle;
+    }
+
+    /**
+     * Wakes the given worker if it is asleep; for a subclass that has queued a task outside
+     * execute() that only this worker takes
+     */
+    protected final void signal(int worker) {
+        if (sleepers.get() > 0) wake(worker);
+    }
+
+    private void wakeOne() {
+        final int start = nextToWake;
+        for (int i = 0; i < threads.length; i++) {
+            final int w = (start + i) % threads.length;
+            if (wake(w)) {
+                nextToWake = w + 1;
+                return;
+            }
+        }
+    }
+
+    private void wakeAll() {
+        for (int w = 0; w < threads.length; w++) {
+            wake(w);
+        }
+    }
+
+    private boolean wake(int w) {
+        if (asleep.get(w) == 0 || !asleep.compareAndSet(w, 1, 0)) return false;
+        sleepers.decrementAndGet();
+        LockSupport.unpark(threads[w]);
+        return true;
+    }
+
+    public boolean isShutdown() {
+        return state.get() != RUNNING;
+    }
+
+    public boolean isTerminated() {
+        return terminated.getCount() == 0;
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return terminated.await(timeout, unit);
+    }
+
+    public String toString() {
+        return super.toString() + "[" + (!isShutdown() ? "Running" : isTerminated() ? "Terminated" : "Shutting down")
+            + ", pool size = " + threads.length + ", queued tasks = " + getQueueSize() + "]";
+    }
+
+    private class Worker implements Runnable {
+        private final int index;
+        // the batch being run, each task taken back out before it starts
+        private final AtomicReferenceArray<Runnable> claimed = new AtomicReferenceArray<Runnable>(MAX_BATCH);
+        // 1 while claiming a batch; shutdownNow() waits for it to drop before taking any back
+        private volatile int claiming;
+
+        Worker(int index) {
+            this.index = index;
+        }
+
+        public void run() {
+            try {
+                final Runnable[] batch = new Runnable[MAX_BATCH];
+                int rounds = 0;
+                while (true) {
+                    final int n = claim(batch);
+                    if (n > 0) {
+                        rounds = 0;
+                        for (int i = 0; i < n && state.get() != STOP; i++) {
+                            // null if shutdownNow() took it back
+                            final Runnable task = claimed.getAndSet(i, null);
+                            if (task != null) runTask(task);
+                        }
+                    } else if (state.get() == STOP || (closed && isDrained())) {
+                        return;
+                    } else if (!idle.idle(++rounds)) {
+                        rounds = 0;
+                        block();
+                    }
+                }
+            } finally {
+                terminated.countDown();
+            }
+        }
+
+        /**
+         * Takes a batch from the queue into claimed, unless shutdownNow() has been called
+         *
+         * Flagging claiming and then looking at the state, against shutdownNow() setting the
+         * state and then waiting for the flag to drop, means either no batch is claimed or
+         * shutdownNow() sees all of it.
+         */
+        private int claim(Runnable[] batch) {
+            claiming = 1;
+            try {
+                if (state.get() == STOP) return 0;
+                final int n = poll(index, batch, batchSize);
+                for (int i = 0; i < n; i++) {
+                    claimed.lazySet(i, batch[i]);
+                    batch[i] = null;
+                }
+                return n;
+            } finally {
+                claiming = 0;
+            }
+        }
+
+        /**
+         * Adds the tasks of this worker's batch it hasn't started to pending; once stopped
+         */
+        void giveBack(List<Runnable> pending) {
+            while (claiming == 1) {
+                Thread.yield();
+            }
+            for (int i = 0; i < MAX_BATCH; i++) {
+                if (claimed.get(i) == null) continue;
+                final Runnable task = claimed.getAndSet(i, null);
+                if (task != null) pending.add(task);
+            }
+        }
+
+        /**
+         * Parks until woken, unless a task or shutdown shows up while going to sleep
+         *
+         * Marking asleep and then looking at the queue, against execute() queueing and then
+         * looking for sleepers, means at least one of the two sees the other.
+         */
+        private void block() {
+            asleep.set(index, 1);
+            sleepers.incrementAndGet();
+            while (asleep.get(index) == 1 && !hasWork(index) && !closed && state.get() == RUNNING) {
+                // an interrupt left over from a task would stop park() from parking
+                Thread.interrupted();
+                LockSupport.park(this);
+            }
+            // woke up by itself, take the mark back unless a waker just did
+            if (asleep.compareAndSet(index, 1, 0)) {
+                sleepers.decrementAndGet();
+            }
+        }
+
+        private void runTask(Runnable task) {
+            // shutdownNow() interrupts; don't let that leak into the next task
+            if (state.get() != STOP) Thread.interrupted();
+            try {
+                task.run();
+            } catch (Throwable t) {
+                // keep the worker; submit()ted tasks never get here, their future holds it
+                final Thread current = Thread.currentThread();
+                current.getUncaughtExceptionHandler().uncaughtException(current, t);
+            }
+        }
+    }
+}
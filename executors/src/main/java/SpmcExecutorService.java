@@ -0,0 +1,182 @@
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The padded SpmcQueue from CustomExecutorSpmcPpTpPadded as a complete ExecutorService
+ *
+ * The queue is still single producer, so submitting threads take turns on a padded spin lock;
+ * uncontended that is one CAS per task. A full queue is waited on outside the lock, so
+ * shutdown() isn't held up behind a blocked submitter. See MpmcExecutorService for one that
+ * doesn't need the lock.
+ *
+ * executeBatch() queues a whole array under one turn of the lock and one publish, and workers
+ * claim runs of tasks with one CAS on lastConsumed.
+ */
+public class SpmcExecutorService extends QueueExecutorService {
+
+    private final SpmcQueue queue;
+    // producers take turns on the single producer queue
+    private final AtomicBoolean producerLock = new PaddedAtomicBoolean();
+    private boolean closed;
+
+    /**
+     * A pool that blocks the submitter while the queue is full, like the experiments do, and
+     * whose idle workers back off to blocking
+     */
+    public SpmcExecutorService(int threadCount, int capacity) {
+        this(threadCount, capacity, true, ABORT, daemonThreadFactory("spmc"), IdleStrategy.PROGRESSIVE);
+    }
+
+    /**
+     * @param capacity queue size, a power of two
+     */
+    public SpmcExecutorService(int threadCount, int capacity, boolean blockWhenFull,
+                               RejectionPolicy rejection, ThreadFactory threadFactory, IdleStrategy idle) {
+        super(threadCount, blockWhenFull, rejection, threadFactory, idle);
+        if (capacity < 1 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        this.queue = new SpmcQueue(capacity);
+        start();
+    }
+
+    protected int enqueue(Runnable task) {
+        lockProducer();
+        try {
+            // checked under the lock, so nothing gets in after close() returns
+            if (closed) return CLOSED;
+            return queue.offer(task) ? QUEUED : FULL;
+        } finally {
+            unlockProducer();
+        }
+    }
+
+    protected int enqueue(Runnable[] tasks, int from, int count) {
+        lockProducer();
+        try {
+            if (closed) return -1;
+            return queue.offer(tasks, from, count);
+        } finally {
+            unlockProducer();
+        }
+    }
+
+    protected void close() {
+        lockProducer();
+        closed = true;
+        unlockProducer();
+    }
+
+    protected Runnable poll() {
+        return queue.poll();
+    }
+
+    protected int poll(int worker, Runnable[] batch, int max) {
+        return queue.drain(batch, max);
+    }
+
+    protected boolean isDrained() {
+        return queue.size() == 0;
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    private void lockProducer() {
+        while (!producerLock.compareAndSet(false, true)) {
+            Thread.yield();
+        }
+    }
+
+    private void unlockProducer() {
+        producerLock.set(false);
+    }
+
+    /**
+     * SpmcQueue from CustomExecutorSpmcPpTpPadded; offer() from one thread at a time
+     *
+     * A taken slot is not cleared, as a consumer only owns it after its CAS and the producer may
+     * reuse it straight away, so up to capacity finished tasks stay reachable.
+     */
+    private static class SpmcQueue {
+        private final Runnable[] buffer;
+        private final int capacity;
+        private final long mask;
+
+        // producer's own cursor, lazySet published to the consumers
+        private long toWrite = 1;
+        private final AtomicLong nextSlotToWrite = new PaddedAtomicLong(1);
+        private final AtomicLong lastConsumed = new PaddedAtomicLong(0);
+
+        SpmcQueue(int capacity) {
+            this.capacity = capacity;
+            this.buffer = new Runnable[capacity];
+            this.mask = capacity - 1;
+        }
+
+        boolean offer(Runnable r) {
+            if (toWrite > lastConsumed.get() + capacity) return false;
+            buffer[(int) (toWrite & mask)] = r;
+            toWrite += 1;
+            nextSlotToWrite.lazySet(toWrite);
+            return true;
+        }
+
+        /**
+         * @return how many of tasks[from] to tasks[from + count - 1] there was room for
+         */
+        int offer(Runnable[] tasks, int from, int count) {
+            final int n = (int) Math.min(count, lastConsumed.get() + capacity + 1 - toWrite);
+            if (n <= 0) return 0;
+            for (int i = 0; i < n; i++) {
+                buffer[(int) ((toWrite + i) & mask)] = tasks[from + i];
+            }
+            toWrite += n;
+            nextSlotToWrite.lazySet(toWrite);
+            return n;
+        }
+
+        /**
+         * Claims up to max tasks with one CAS
+         */
+        int drain(Runnable[] into, int max) {
+            while (true) {
+                final long lastFilled = nextSlotToWrite.get() - 1;
+                final long lastConsumedCache = lastConsumed.get();
+                final int n = (int) Math.min(max, lastFilled - lastConsumedCache);
+                if (n <= 0) return 0;
+                // read before the CAS, same as poll()
+                for (int i = 0; i < n; i++) {
+                    into[i] = buffer[(int) ((lastConsumedCache + 1 + i) & mask)];
+                }
+                if (lastConsumed.compareAndSet(lastConsumedCache, lastConsumedCache + n)) {
+                    return n;
+                }
+            }
+        }
+
+        Runnable poll() {
+            while (true) {
+                final long lastFilled = nextSlotToWrite.get() - 1;
+                final long lastConsumedCache = lastConsumed.get();
+                if (lastConsumedCache >= lastFilled) return null;
+                // fetch the value from buffer first, to avoid a wrap race
+                final Runnable r = buffer[(int) ((lastConsumedCache + 1) & mask)];
+                if (lastConsumed.compareAndSet(lastConsumedCache, lastConsumedCache + 1)) {
+                    return r;
+                }
+            }
+        }
+
+        int size() {
+            return (int) Math.max(0, nextSlotToWrite.get() - 1 - lastConsumed.get());
+        }
+    }
+
+    private static class PaddedAtomicBoolean extends AtomicBoolean {
+        private static final long serialVersionUID = 1L;
+        public volatile long p1, p2, p3, p4, p5, p6 = 7;
+    }
+}
@@ -0,0 +1,251 @@
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * CustomExecutorStripedPi's queue per thread, with work stealing
+ *
+ * The striped experiment hands tasks round robin to one queue per worker, so there is no
+ * shared queue to contend on, but a slow task holds up every task queued behind it on its
+ * stripe while the other workers sit idle. Here each worker still has its own bounded queue,
+ * and a worker that finds its own empty takes from the others'.
+ *
+ * Tasks come from outside the pool, so a worker's queue is FIFO at both ends: the owner and
+ * thieves take from the head, and submission order is kept within a stripe. execute() puts a
+ * task on a random stripe, trying the next one along when that is full. Without stealing only
+ * that stripe's worker will run it, so that is the one woken, and executeBatch() queues a task
+ * at a time for the same reason.
+ *
+ * execute(key, task) is for tasks that must run one at a time in submission order per key.
+ * Those go to a second queue on the worker the key hashes to, which only that worker takes
+ * from, so they are never stolen; the price is that they can only be held up behind tasks
+ * of the same stripe. A keyed task that can't be queued always throws
+ * RejectedExecutionException, whatever the RejectionPolicy: running it on the caller, or
+ * dropping some other stripe's oldest task to make room, would break its key's order.
+ *
+ * Each worker counts what it ran from its own stripe and what it stole, see getLocalCount(),
+ * getStealCount() and getImbalance().
+ */
+public class StripedExecutorService extends QueueExecutorService {
+
+    // per worker counters, a cache line apart
+    private static final int STRIDE = 8;
+    private static final int LOCAL = 0;
+    private static final int STOLEN = 1;
+
+    private final int stripes;
+    private final boolean steal;
+    private final boolean blockWhenFull;
+    // anyone takes from these
+    private final MpmcQueue<Runnable>[] local;
+    // only the owning worker takes from these
+    private final MpmcQueue<Runnable>[] pinned;
+    private final AtomicLongArray counts;
+
+    /**
+     * A stealing pool that blocks the submitter while the chosen stripes are full
+     */
+    public StripedExecutorService(int threadCount, int capacity) {
+        this(threadCount, capacity, true, true, ABORT, daemonThreadFactory("striped"), IdleStrategy.PROGRESSIVE);
+    }
+
+    /**
+     * @param capacity size of each worker's queue, and of its keyed queue; a power of two
+     * @param steal false to only ever run tasks from the worker's own stripe, as the experiment
+     */
+    public StripedExecutorService(int threadCount, int capacity, boolean steal, boolean blockWhenFull,
+                                  RejectionPolicy rejection, ThreadFactory threadFactory, IdleStrategy idle) {
+        super(threadCount, blockWhenFull, rejection, threadFactory, idle);
+        this.stripes = threadCount;
+        this.steal = steal;
+        this.blockWhenFull = blockWhenFull;
+        this.local = newQueues(threadCount, capacity);
+        this.pinned = newQueues(threadCount, capacity);
+        this.counts = new AtomicLongArray(threadCount * STRIDE);
+        start();
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static MpmcQueue<Runnable>[] newQueues(int count, int capacity) {
+        final MpmcQueue<Runnable>[] queues = new MpmcQueue[count];
+        for (int i = 0; i < count; i++) {
+            queues[i] = new MpmcQueue<Runnable>(capacity);
+        }
+        return queues;
+    }
+
+    /**
+     * Runs tasks with equal keys one at a time, in the order they are submitted
+     *
+     * @throws RejectedExecutionException if shut down, or the key's stripe is full and this
+     *                                    pool doesn't block when full
+     */
+    public void execute(Object key, Runnable task) {
+        if (task == null) throw new NullPointerException();
+        final int worker = stripe(key);
+        while (!pinned[worker].offer(task)) {
+            if (pinned[worker].isClosed() || !blockWhenFull) {
+                throw new RejectedExecutionException("task " + task + " for key " + key + " rejected from " + this);
+            }
+            LockSupport.parkNanos(1);
+        }
+        signal(worker);
+    }
+
+    public void executeBatch(Runnable[] tasks) {
+        if (steal) {
+            super.executeBatch(tasks);
+            return;
+        }
+        for (Runnable task : tasks) {
+            if (task == null) throw new NullPointerException();
+        }
+        for (Runnable task : tasks) {
+            execute(task);
+        }
+    }
+
+    /**
+     * @return the worker that runs tasks submitted with this key
+     */
+    public int stripe(Object key) {
+        final int h = key.hashCode() * 0x9E3779B9;
+        return (int) (((h ^ h >>> 16) & 0xffffffffL) % stripes);
+    }
+
+    protected int enqueue(Runnable task) {
+        final int start = ThreadLocalRandom.current().nextInt(stripes);
+        for (int i = 0; i < stripes; i++) {
+            final int stripe = (start + i) % stripes;
+            if (local[stripe].offer(task)) return steal ? QUEUED : queuedFor(stripe);
+        }
+        return local[start].isClosed() ? CLOSED : FULL;
+    }
+
+    /**
+     * Keeps a batch together on one stripe, as far as it fits
+     */
+    protected int enqueue(Runnable[] tasks, int from, int count) {
+        final int start = ThreadLocalRandom.current().nextInt(stripes);
+        int queued = 0;
+        for (int i = 0; i < stripes && queued < count; i++) {
+            queued += local[(start + i) % stripes].offer(tasks, from + queued, count - queued);
+        }
+        return queued > 0 || !local[start].isClosed() ? queued : -1;
+    }
+
+    protected void close() {
+        for (int i = 0; i < stripes; i++) {
+            local[i].close();
+            pinned[i].close();
+        }
+    }
+
+    /**
+     * A batch comes from one queue: keyed tasks first, then the worker's own, then a victim's
+     */
+    protected int poll(int worker, Runnable[] batch, int max) {
+        int n = pinned[worker].drain(batch, max);
+        if (n == 0) n = local[worker].drain(batch, max);
+        if (n > 0) {
+            counts.lazySet(worker * STRIDE + LOCAL, counts.get(worker * STRIDE + LOCAL) + n);
+            return n;
+        }
+        if (!steal) return 0;
+        for (int i = 1; i < stripes; i++) {
+            // take half of what we'd take from our own, and leave the owner the rest
+            n = local[(worker + i) % stripes].drain(batch, Math.max(1, max / 2));
+            if (n > 0) {
+                counts.lazySet(worker * STRIDE + STOLEN, counts.get(worker * STRIDE + STOLEN) + n);
+                return n;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Any task from any stripe; for shutdownNow() and DISCARD_OLDEST
+     */
+    protected Runnable poll() {
+        for (int i = 0; i < stripes; i++) {
+            Runnable task = pinned[i].poll();
+            if (task == null) task = local[i].poll();
+            if (task != null) return task;
+        }
+        return null;
+    }
+
+    protected boolean hasWork(int worker) {
+        if (!pinned[worker].isDrained() || !local[worker].isDrained()) return true;
+        if (!steal) return false;
+        for (int i = 0; i < stripes; i++) {
+            if (!local[i].isDrained()) return true;
+        }
+        return false;
+    }
+
+    protected boolean isDrained() {
+        for (int i = 0; i < stripes; i++) {
+            if (!local[i].isDrained() || !pinned[i].isDrained()) return false;
+        }
+        return true;
+    }
+
+    public int getQueueSize() {
+        int size = 0;
+        for (int i = 0; i < stripes; i++) {
+            size += local[i].size() + pinned[i].size();
+        }
+        return size;
+    }
+
+    /**
+     * @return tasks run by the worker that they were queued on
+     */
+    public long getLocalCount() {
+        long sum = 0;
+        for (int i = 0; i < stripes; i++) {
+            sum += counts.get(i * STRIDE + LOCAL);
+        }
+        return sum;
+    }
+
+    /**
+     * @return tasks run by a worker that took them from another's queue
+     */
+    public long getStealCount() {
+        long sum = 0;
+        for (int i = 0; i < stripes; i++) {
+            sum += counts.get(i * STRIDE + STOLEN);
+        }
+        return sum;
+    }
+
+    /**
+     * @return tasks run by this worker, local and stolen
+     */
+    public long getCompletedCount(int worker) {
+        return counts.get(worker * STRIDE + LOCAL) + counts.get(worker * STRIDE + STOLEN);
+    }
+
+    /**
+     * @return tasks run by the busiest worker over the mean, 1.0 when evenly spread
+     */
+    public double getImbalance() {
+        long max = 0;
+        long sum = 0;
+        for (int i = 0; i < stripes; i++) {
+            final long completed = getCompletedCount(i);
+            max = Math.max(max, completed);
+            sum += completed;
+        }
+        return sum == 0 ? 1.0 : (double) max * stripes / sum;
+    }
+
+    public String toString() {
+        return super.toString() + "[local = " + getLocalCount() + ", stolen = " + getStealCount()
+            + ", imbalance = " + String.format("%.2f", getImbalance()) + "]";
+    }
+}
@@ -0,0 +1,174 @@
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Checks StripedExecutorService keeps per key order, and loses nothing to stealing
+ *
+ * Producers submit keyed tasks, each carrying the next number for its key, mixed with plain
+ * tasks; a keyed task that finds its key's last number is not the one before its own ran out
+ * of order, or at the same time as another of its key. The plain tasks include slow ones so
+ * there is something to steal. Every task must have run once the pool has shut down.
+ *
+ * Then, with and without stealing, single tasks plain, keyed and in a batch, each after a gap
+ * long enough for every worker to have gone to sleep; one that doesn't run within a second was
+ * queued where no woken worker looks. Last, a keyed task that doesn't fit must be rejected
+ * with an exception whatever the RejectionPolicy, and not run on the caller or make room by
+ * dropping another.
+ *
+ * usage: StripedExecutorStress [producers] [workers] [rounds], default 4 4 10
+ */
+public class StripedExecutorStress {
+
+    private static final int PER_PRODUCER = 500000;
+    private static final int KEYS = 64;
+
+    public static void main(String[] args) throws Exception {
+        final int producers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        final int workers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        final int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        for (int round = 0; round < rounds; round++) {
+            run(producers, workers);
+        }
+        wakeups(workers, false);
+        wakeups(workers, true);
+        keyedRejection();
+        System.out.println("ok");
+    }
+
+    static void run(final int producers, int workers) throws Exception {
+        final StripedExecutorService executor = new StripedExecutorService(workers, 256);
+        // one range of keys per producer, so each key's numbers come from one thread in order
+        final AtomicLongArray last = new AtomicLongArray(producers * KEYS);
+        final AtomicLong ran = new AtomicLong();
+        final AtomicLong disorder = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(producers);
+        final long start = System.nanoTime();
+        for (int p = 0; p < producers; p++) {
+            final int firstKey = p * KEYS;
+            new Thread(new Runnable() {
+                public void run() {
+                    final long[] next = new long[KEYS];
+                    for (int i = 0; i < PER_PRODUCER; i++) {
+                        if ((i & 1) == 0) {
+                            final int key = firstKey + (i >> 1) % KEYS;
+                            final long number = ++next[key - firstKey];
+                            executor.execute(Integer.valueOf(key), new Runnable() {
+                                public void run() {
+                                    // claim the key while running, anyone else running it now fails the cas
+                                    if (!last.compareAndSet(key, number - 1, -number)) disorder.incrementAndGet();
+                                    last.set(key, number);
+                                    ran.incrementAndGet();
+                                }
+                            });
+                        } else {
+                            final boolean slow = i % 5001 == 0;
+                            executor.execute(new Runnable() {
+                                public void run() {
+                                    if (slow) LockSupport.parkNanos(100000);
+                                    ran.incrementAndGet();
+                                }
+                            });
+                        }
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        executor.shutdown();
+        if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+            throw new AssertionError("executor did not terminate: " + executor);
+        }
+        if (disorder.get() != 0) throw new AssertionError(disorder.get() + " keyed task(s) ran out of order");
+        final long total = (long) producers * PER_PRODUCER;
+        if (ran.get() != total) throw new AssertionError("ran " + ran.get() + " of " + total + " tasks");
+        System.out.println(String.format("%d producers %d workers: %d in %d ms, stole %d, imbalance %.2f",
+                                         producers, workers, total, (System.nanoTime() - start) / 1000000,
+                                         executor.getStealCount(), executor.getImbalance()));
+    }
+
+    static void wakeups(int workers, boolean steal) throws Exception {
+        final int tasks = 30;
+        final StripedExecutorService executor = new StripedExecutorService(workers, 64, steal, true,
+            QueueExecutorService.ABORT, QueueExecutorService.daemonThreadFactory("wakeups"), IdleStrategy.PROGRESSIVE);
+        final Runnable nothing = new Runnable() {
+            public void run() {
+            }
+        };
+        for (int i = 0; i < tasks; i++) {
+            // progressive blocks after about 10ms with nothing to do
+            Thread.sleep(30);
+            final FutureTask<Void> task = new FutureTask<Void>(nothing, null);
+            if (i % 3 == 0) executor.execute(task);
+            else if (i % 3 == 1) executor.execute(Integer.valueOf(i), task);
+            else executor.executeBatch(new Runnable[] { task });
+            try {
+                task.get(1, TimeUnit.SECONDS);
+            } catch (TimeoutException e) {
+                throw new AssertionError("task " + i + " not run a second after queueing on an idle pool, steal "
+                                         + steal + ": " + executor);
+            }
+        }
+        executor.shutdown();
+        if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+            throw new AssertionError("executor did not terminate: " + executor);
+        }
+        System.out.println(String.format("wakeups %d workers, steal %b: %d tasks after idling", workers, steal, tasks));
+    }
+
+    static void keyedRejection() throws Exception {
+        final QueueExecutorService.RejectionPolicy[] policies = {
+            QueueExecutorService.CALLER_RUNS, QueueExecutorService.DISCARD_OLDEST, QueueExecutorService.DISCARD,
+        };
+        for (QueueExecutorService.RejectionPolicy policy : policies) {
+            final StripedExecutorService executor = new StripedExecutorService(1, 2, true, false, policy,
+                QueueExecutorService.daemonThreadFactory("rejection"), IdleStrategy.PROGRESSIVE);
+            final CountDownLatch running = new CountDownLatch(1);
+            final CountDownLatch release = new CountDownLatch(1);
+            executor.execute(new Runnable() {
+                public void run() {
+                    running.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            running.await();
+            final AtomicLong ran = new AtomicLong();
+            final Runnable count = new Runnable() {
+                public void run() {
+                    ran.incrementAndGet();
+                }
+            };
+            // fills the key's stripe while its worker is busy
+            executor.execute("key", count);
+            executor.execute("key", count);
+            try {
+                executor.execute("key", count);
+                throw new AssertionError("keyed task accepted by a full stripe under " + policy);
+            } catch (RejectedExecutionException expected) {
+            }
+            if (ran.get() != 0) throw new AssertionError("keyed task ran on the caller under " + policy);
+            release.countDown();
+            executor.shutdown();
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                throw new AssertionError("executor did not terminate: " + executor);
+            }
+            if (ran.get() != 2) throw new AssertionError("ran " + ran.get() + " of 2 queued keyed tasks under " + policy);
+            try {
+                executor.execute("key", count);
+                throw new AssertionError("keyed task accepted after shutdown under " + policy);
+            } catch (RejectedExecutionException expected) {
+            }
+        }
+        System.out.println("keyed rejection: full stripe and shutdown throw under every policy");
+    }
+}